@@ -0,0 +1,67 @@
+package kristofkallo.midimapper;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.Receiver;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Runs the benchmarks with the JMH command line options, always with the
+ * GC profiler, so that the allocation rate is reported next to the throughput.
+ *
+ * Run it from the project directory, so that resources/map.xml is found, or
+ * give the map with -Dmidimapper.map=...:
+ * java -jar benchmarks/target/benchmarks.jar [JMH options]
+ *
+ * The benchmarks do not run from the jar of the program, so on Java 9 and later
+ * the receivers copy the message buffers, unlike the program started with
+ * java -jar, see MidiMessageAccess. To measure them as the program runs, add
+ * -jvmArgsAppend --add-opens=java.desktop/javax.sound.midi=ALL-UNNAMED.
+ */
+public class Benchmarks {
+    static final String MAP_PROPERTY = "midimapper.map";
+
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions commandLineOptions = new CommandLineOptions(args);
+        // Setting them replaces those of the command line, so they are added to those
+        List<String> jvmArgs = new ArrayList<>(commandLineOptions.getJvmArgsAppend().orElse(Collections.<String>emptyList()));
+        jvmArgs.add("-D" + MAP_PROPERTY + "=" + System.getProperty(MAP_PROPERTY, App.MAP_PATHNAME));
+        Options options = new OptionsBuilder()
+                .parent(commandLineOptions)
+                .addProfiler(GCProfiler.class)
+                .jvmArgsAppend(jvmArgs.toArray(new String[0]))
+                .build();
+        new Runner(options).run();
+    }
+
+    static String getMapPathname() {
+        return System.getProperty(MAP_PROPERTY, App.MAP_PATHNAME);
+    }
+
+    static MidiMap loadMap() throws Exception {
+        return new MidiMap(getMapPathname(), true);
+    }
+
+    /**
+     * Counts the messages instead of sending them, so that they are not optimized away.
+     */
+    static class CountingReceiver implements Receiver {
+        long count;
+
+        @Override
+        public void send(MidiMessage message, long timeStamp) {
+            count++;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package kristofkallo.midimapper;
+
+import kristofkallo.midimapper.parameter.Parameter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the load time of the StAX and the DOM loaders of {@link MidiMap}:
+ * warm, and the first load in a fresh JVM, which is the cold start of the
+ * application. Before the warm runs, the heap footprint of a loaded map is
+ * printed, averaged over several maps held at the same time.
+ */
+@State(Scope.Benchmark)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class MapLoadBenchmark {
+    private static final int FOOTPRINT_MAPS = 5;
+
+    @Param({"true", "false"})
+    public boolean streaming;
+
+    /**
+     * Reports the footprint in its setup, so that it only runs before the warm
+     * runs, and the first load of the cold runs stays the first in the JVM.
+     */
+    @State(Scope.Benchmark)
+    public static class Footprint {
+        @Setup(Level.Trial)
+        public void report(MapLoadBenchmark benchmark) throws Exception {
+            reportFootprint(benchmark.streaming);
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @Warmup(iterations = 5, time = 2)
+    @Measurement(iterations = 5, time = 2)
+    @Fork(1)
+    public MidiMap warm(Footprint footprint) throws Exception {
+        return new MidiMap(Benchmarks.getMapPathname(), streaming);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @Warmup(iterations = 0)
+    @Measurement(iterations = 1)
+    @Fork(10)
+    public MidiMap cold() throws Exception {
+        return new MidiMap(Benchmarks.getMapPathname(), streaming);
+    }
+
+    private static void reportFootprint(boolean streaming) throws Exception {
+        MidiMap[] maps = new MidiMap[FOOTPRINT_MAPS];
+        long before = usedHeap();
+        for (int i = 0; i < maps.length; i++) {
+            maps[i] = new MidiMap(Benchmarks.getMapPathname(), streaming);
+        }
+        long after = usedHeap();
+        MidiMap map = maps[0];
+
+        // Tables shared by several parameters are only counted once
+        Set<short[]> tables = Collections.newSetFromMap(new IdentityHashMap<short[], Boolean>());
+        int tableReferences = 0;
+        for (int i = 0; i < map.getParameterCount(); i++) {
+            Parameter parameter = map.getParameter(i);
+            for (short[] table : new short[][]{parameter.getConsoleToDAWTable(), parameter.getDAWToConsoleTable()}) {
+                if (table != null) {
+                    tables.add(table);
+                    tableReferences++;
+                }
+            }
+        }
+        long tableBytes = 0;
+        for (short[] table : tables) {
+            tableBytes += (long) table.length * Short.BYTES;
+        }
+        System.out.printf("%nheap %.1f MB for %d parameters, %d distinct tables of %d references, %.1f MB of tables%n",
+                (after - before) / 1e6 / maps.length, map.getParameterCount(), tables.size(), tableReferences, tableBytes / 1e6);
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,77 @@
+package kristofkallo.midimapper;
+
+import kristofkallo.midimapper.parameter.Parameter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Looks up the channels and the parameters of the map by SysEx address and by
+ * NRPN, cycling through every parameter of the map.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MapLookupBenchmark {
+    private MidiMap midiMap;
+    // The addresses of every parameter: channel sysex0, sysex1, parameter sysex0, sysex1
+    private byte[][] sysexAddresses;
+    // channel NRPN, parameter NRPN
+    private byte[][] nrpns;
+    private int next;
+
+    @Setup
+    public void setUp() throws Exception {
+        midiMap = Benchmarks.loadMap();
+        List<byte[]> sysexList = new ArrayList<>();
+        List<byte[]> nrpnList = new ArrayList<>();
+        for (int i = 0; i < midiMap.getParameterCount(); i++) {
+            Parameter parameter = midiMap.getParameter(i);
+            Address channelAddress = parameter.getChannel().getAddress();
+            Address address = parameter.getAddress();
+            // Only the parameters that can be found both ways
+            if (channelAddress.getSysexKey() < 0 || address.getSysexKey() < 0 ||
+                    channelAddress.getNrpn() < 0 || address.getNrpn() < 0) {
+                continue;
+            }
+            sysexList.add(new byte[]{channelAddress.getSysex0(), channelAddress.getSysex1(), address.getSysex0(), address.getSysex1()});
+            nrpnList.add(new byte[]{channelAddress.getNrpn(), address.getNrpn()});
+        }
+        sysexAddresses = sysexList.toArray(new byte[0][]);
+        nrpns = nrpnList.toArray(new byte[0][]);
+    }
+
+    private int nextIndex() {
+        int index = next;
+        next = index + 1 == sysexAddresses.length ? 0 : index + 1;
+        return index;
+    }
+
+    @Benchmark
+    public Parameter bySysexAddress() {
+        byte[] address = sysexAddresses[nextIndex()];
+        Channel channel = midiMap.getChannelByAddress(address[0], address[1]);
+        return channel.getParameterByAddress(address[2], address[3]);
+    }
+
+    @Benchmark
+    public Parameter byNrpn() {
+        byte[] nrpn = nrpns[nextIndex()];
+        Channel channel = midiMap.getChannelByNrpn(nrpn[0]);
+        return channel.getParameterByNrpn(nrpn[1]);
+    }
+}
@@ -0,0 +1,67 @@
+package kristofkallo.midimapper;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encodes and decodes the 7-bit payloads of the console's parameters, in place
+ * in a message buffer like the receivers and the outputs do, and with the
+ * variants that allocate the array.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MidiDataTransformBenchmark {
+    @Param({"1", "2", "3"})
+    public int length;
+
+    @Param({"false", "true"})
+    public boolean signed;
+
+    private final byte[] buffer = new byte[M400ByteCode.DATA_OFFSET + 3 + 2];
+    private byte[] payload;
+    private int value;
+
+    @Setup
+    public void setUp() {
+        int range = 1 << (7 * length);
+        value = signed ? -range / 3 : range / 3;
+        MidiDataTransform.toByteArray(value, buffer, M400ByteCode.DATA_OFFSET, length);
+        payload = MidiDataTransform.toByteArray(value, length);
+    }
+
+    @Benchmark
+    public byte[] encodeInPlace() {
+        MidiDataTransform.toByteArray(value, buffer, M400ByteCode.DATA_OFFSET, length);
+        return buffer;
+    }
+
+    @Benchmark
+    public byte[] encode() {
+        return MidiDataTransform.toByteArray(value, length);
+    }
+
+    @Benchmark
+    public int decodeInPlace() {
+        return MidiDataTransform.fromByteArray(buffer, M400ByteCode.DATA_OFFSET, length, signed);
+    }
+
+    @Benchmark
+    public int decode() {
+        return MidiDataTransform.fromByteArray(payload, signed);
+    }
+}
@@ -0,0 +1,82 @@
+package kristofkallo.midimapper;
+
+import kristofkallo.midimapper.parameter.Parameter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Maps values in both directions with the first parameter of the map of each
+ * scale, the way the receivers do: with the lookup tables where the parameter
+ * is compiled. The console to DAW mapping is also evaluated analytically, to
+ * see what the tables save.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParameterMappingBenchmark {
+    private static final int VALUE_COUNT = 1024;
+
+    @Param({"LIN", "SW", "LOG", "SPLINE", "POW", "POWLIN", "STAIRS", "POLY", "EXPLIN"})
+    public Scale scale;
+
+    private Parameter parameter;
+    // Spread over the range of the console, and of the DAW
+    private int[] consoleValues;
+    private int[] dawValues;
+    private int next;
+
+    @Setup
+    public void setUp() throws Exception {
+        MidiMap midiMap = Benchmarks.loadMap();
+        for (int i = 0; i < midiMap.getParameterCount() && parameter == null; i++) {
+            if (midiMap.getParameter(i).getScale() == scale) {
+                parameter = midiMap.getParameter(i);
+            }
+        }
+        if (parameter == null) {
+            throw new IllegalStateException("No parameter with " + scale + " scale in the map");
+        }
+        consoleValues = new int[VALUE_COUNT];
+        dawValues = new int[VALUE_COUNT];
+        double low = Math.min(parameter.getMin(), parameter.getMax());
+        double high = Math.max(parameter.getMin(), parameter.getMax());
+        for (int i = 0; i < VALUE_COUNT; i++) {
+            consoleValues[i] = (int) Math.round(low + (high - low) * i / (VALUE_COUNT - 1));
+            dawValues[i] = 16383 * i / (VALUE_COUNT - 1);
+        }
+    }
+
+    private int nextIndex() {
+        next = (next + 1) & (VALUE_COUNT - 1);
+        return next;
+    }
+
+    @Benchmark
+    public int consoleToDAW() {
+        return parameter.mapConsoleToDAW(consoleValues[nextIndex()]);
+    }
+
+    @Benchmark
+    public int consoleToDAWAnalytically() {
+        return parameter.mapConsoleToDAWAnalytically(consoleValues[nextIndex()]);
+    }
+
+    @Benchmark
+    public int dawToConsole() {
+        return parameter.mapDAWToConsole(dawValues[nextIndex()]);
+    }
+}
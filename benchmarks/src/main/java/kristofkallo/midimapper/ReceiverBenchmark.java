@@ -0,0 +1,91 @@
+package kristofkallo.midimapper;
+
+import kristofkallo.midimapper.parameter.Parameter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.SysexMessage;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends messages through the receivers and the outputs end to end, from the
+ * input port to a receiver that only counts what reaches the output port:
+ * a Data Set message of the console to NRPN, and an NRPN value of the DAW,
+ * four control changes, to a Data Set message. Two values alternate, as
+ * repeating the same one would be unrealistic.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReceiverBenchmark {
+    private final Benchmarks.CountingReceiver toDAW = new Benchmarks.CountingReceiver();
+    private final Benchmarks.CountingReceiver toConsole = new Benchmarks.CountingReceiver();
+    private M400Receiver fromConsole;
+    private LoopMidiReceiver fromDAW;
+    private SysexMessage[] dataSets;
+    private ShortMessage[][] nrpns;
+    private int next;
+
+    @Setup
+    public void setUp() throws Exception {
+        MidiMap midiMap = Benchmarks.loadMap();
+        Parameter parameter = null;
+        for (int i = 0; i < midiMap.getParameterCount() && parameter == null; i++) {
+            if (midiMap.getParameter(i).getLengthInBytes() == 2) {
+                parameter = midiMap.getParameter(i);
+            }
+        }
+        if (parameter == null) {
+            throw new IllegalStateException("No parameter of 2 bytes in the map");
+        }
+        fromConsole = new M400Receiver(new NrpnOutput(toDAW), midiMap);
+        fromDAW = new LoopMidiReceiver(new SysexOutput(toConsole), midiMap);
+        dataSets = new SysexMessage[]{createDataSet(parameter, 100), createDataSet(parameter, 200)};
+        nrpns = new ShortMessage[][]{createNrpn(parameter, 1000), createNrpn(parameter, 2000)};
+    }
+
+    @Benchmark
+    public long consoleToDAW() {
+        next ^= 1;
+        fromConsole.send(dataSets[next], -1);
+        return toDAW.count;
+    }
+
+    @Benchmark
+    public long dawToConsole() {
+        next ^= 1;
+        for (ShortMessage message : nrpns[next]) {
+            fromDAW.send(message, -1);
+        }
+        return toConsole.count;
+    }
+
+    private static SysexMessage createDataSet(Parameter parameter, int value) throws InvalidMidiDataException {
+        byte[] data = parameter.getSysexTemplate().clone();
+        MidiDataTransform.toByteArray(value, data, M400ByteCode.DATA_OFFSET, parameter.getLengthInBytes());
+        M400ByteCode.putChecksum(data, data.length - 2);
+        return new SysexMessage(data, data.length);
+    }
+
+    private static ShortMessage[] createNrpn(Parameter parameter, int value) throws InvalidMidiDataException {
+        return new ShortMessage[]{
+                new ShortMessage(ShortMessage.CONTROL_CHANGE, 0, LoopMidiReceiver.NRPN_STAGE_CHANNEL, parameter.getChannel().getAddress().getNrpn()),
+                new ShortMessage(ShortMessage.CONTROL_CHANGE, 0, LoopMidiReceiver.NRPN_STAGE_PARAM, parameter.getAddress().getNrpn()),
+                new ShortMessage(ShortMessage.CONTROL_CHANGE, 0, LoopMidiReceiver.NRPN_STAGE_VALUE_MSB, value >> 7),
+                new ShortMessage(ShortMessage.CONTROL_CHANGE, 0, LoopMidiReceiver.NRPN_STAGE_VALUE_LSB, value & 127)
+        };
+    }
+}
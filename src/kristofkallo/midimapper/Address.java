@@ -1,6 +1,15 @@
 package kristofkallo.midimapper;
 
 public class Address {
+    /**
+     * Number of distinct keys that two 7-bit SysEx address bytes can be packed into.
+     */
+    public static final int SYSEX_KEY_COUNT = 1 << 14;
+    /**
+     * Number of distinct 7-bit NRPN values.
+     */
+    public static final int NRPN_COUNT = 1 << 7;
+
     private final byte sysex0;
     private final byte sysex1;
     private final byte nrpn;
@@ -19,4 +28,20 @@ public class Address {
     public byte getNrpn() {
         return nrpn;
     }
+    public int getSysexKey() {
+        return sysexKey(sysex0, sysex1);
+    }
+
+    /**
+     * Packs two 7-bit SysEx address bytes into a single 14-bit key,
+     * the first byte being the more significant one.
+     *
+     * @return The packed key, or -1 if any of the bytes is not a valid 7-bit byte.
+     */
+    public static int sysexKey(byte sysex0, byte sysex1) {
+        if (sysex0 < 0 || sysex1 < 0) {
+            return -1;
+        }
+        return sysex0 << 7 | sysex1;
+    }
 }
@@ -2,220 +2,658 @@ package kristofkallo.midimapper;
 
 import org.xml.sax.SAXException;
 
+import javax.management.JMException;
+import javax.management.ObjectName;
 import javax.sound.midi.*;
 import javax.xml.parsers.ParserConfigurationException;
-import java.awt.*;
-import java.io.FileNotFoundException;
+import javax.xml.stream.XMLStreamException;
 import java.io.IOException;
-import java.util.Scanner;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * The application class.
- * It has a tray menu. It is initialized in the constructor, and torn down
- * in the quit function. The tray icon is used for user actions, and for
- * displaying error or warning messages.
+ * It is initialized in the start function, and torn down in the quit function.
+ * The user actions come from the tray menu, or from the {@link ControlInterface}
+ * when running headless, and the error or warning messages are displayed
+ * by the {@link Notifier}.
  *
  * It has MIDI devices for two-way communication.
  * It establishes MIDI connections and registers receivers.
+ * The ports of one side can be replaced behind the chains of the receivers,
+ * so that the {@link DeviceMonitor} can reconnect a device that came back
+ * while the other direction keeps working.
  */
-public class App {
+public class App implements DeviceMonitor.Listener {
     static final String APP_NAME = "M-400 MIDI Mapper";
 
-    private final TrayMenu trayMenu;
+    private Notifier notifier;
+    private boolean headless;
+    private String startupReport;
 
-    private MidiDevice m400In; // M-400 console -> this program
-    private MidiDevice loopMidiIn; // this program -> loopMidi (-> DAW)
-    private MidiDevice loopMidiOut; // (DAW ->) loopMidi -> this program
-    private MidiDevice m400Out; // this program -> M-400 console
+    private DeviceProvider deviceProvider;
+    private PortPair consolePorts; // M-400 console <-> this program
+    private PortPair dawPorts; // this program <-> loopMidi <-> DAW
+    // The outputs of the chains, in front of the output ports
+    private final VirtualCable consoleOutput = new VirtualCable();
+    private final VirtualCable dawOutput = new VirtualCable();
+    // The first receivers of the chains, behind the input ports, null if not connected
+    private Receiver consoleInput;
+    private Receiver dawInput;
+    // Reconnects the devices that disappeared, null if disabled
+    private DeviceMonitor deviceMonitor;
 
-    private MidiMap midiMap;
+    static final String MAP_PATHNAME = "resources/map.xml";
 
-    public App() throws FileNotFoundException, AWTException {
-        trayMenu = new TrayMenu(this);
+    private volatile MidiMap midiMap;
+    private MapWatcher mapWatcher;
+    // The receivers whose map is swapped on reload, null if not connected
+    private volatile M400Receiver fromConsoleReceiver;
+    private volatile LoopMidiReceiver fromDAWReceiver;
+    private Settings settings = new Settings();
+
+    // Coalescing stages in front of the outputs, null if disabled
+    private CoalescingOutput toDAWCoalescer;
+    private CoalescingOutput toConsoleCoalescer;
+    // Batches the values towards the console instead of the coalescing stage, null if disabled
+    private BatchingSysexOutput toConsoleBatcher;
+    // Records the incoming messages, null if disabled
+    private MidiRecorder recorder;
+    // Limits the rate of the messages to the console, null if disabled
+    private PacedReceiver consolePacer;
+    // Pipelines behind the inputs, null if disabled
+    private PipelineReceiver fromConsolePipeline;
+    private PipelineReceiver fromDAWPipeline;
+    private NrpnOutput nrpnOutput;
+    // Echo suppression right in front of the device outputs, null if disabled
+    private EchoSuppressor dawEchoSuppressor;
+    private EchoSuppressor consoleEchoSuppressor;
+    private final LatencyStats latencyStats = new LatencyStats();
+    // The first stages of the outputs, null if not connected
+    private volatile ParameterOutput toDAWOutput;
+    private volatile ParameterOutput toConsoleOutput;
+    private final ConsoleState consoleState = new ConsoleState();
+    // Requests the console's state, null if not connected
+    private volatile ConsoleSync consoleSync;
+    // The MIDI input of the console, null if not connected
+    private volatile Receiver consoleReceiver;
+    // Runs resyncs one after the other, off the tray thread
+    private final ExecutorService resyncExecutor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "Resync");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Loads the configuration and connects the devices.
+     *
+     * @param notifier Where to display the messages.
+     * @param headless Whether there is no tray, and the application is controlled by the {@link ControlInterface}.
+     */
+    public void start(Notifier notifier, boolean headless) {
+        this.notifier = notifier;
+        this.headless = headless;
+        registerLatencyStats();
         loadConfig();
+        startMapWatcher();
+        // Before connecting, which takes as long as the devices take
+        startupReport = createStartupReport();
+        System.out.println(startupReport);
         connectDevices();
+        startDeviceMonitor();
+    }
+
+    /**
+     * @return The time it took the JVM to start the application, and the heap and
+     *         the classes used by then, to compare the headless mode with the tray.
+     */
+    public String getStartupReport() {
+        return startupReport;
+    }
+    private String createStartupReport() {
+        Runtime runtime = Runtime.getRuntime();
+        return String.format("Started %s in %d ms, %.1f MB heap used, %d classes loaded",
+                headless ? "headless" : "with the tray",
+                ManagementFactory.getRuntimeMXBean().getUptime(),
+                (runtime.totalMemory() - runtime.freeMemory()) / 1e6,
+                ManagementFactory.getClassLoadingMXBean().getLoadedClassCount());
+    }
+    private void registerLatencyStats() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(latencyStats, new ObjectName(LatencyStats.OBJECT_NAME));
+        } catch (JMException e) {
+            System.err.println("Could not register the latency statistics MBean");
+            e.printStackTrace();
+        }
     }
     public void loadConfig() {
         try {
-            midiMap = new MidiMap("resources/map.xml");
+            settings = new Settings("resources/settings.properties");
+        } catch (IOException e) {
+            notifier.displayMessage("Error reading settings.properties, using defaults: " + e.getLocalizedMessage(), Notifier.MessageType.WARNING);
+            e.printStackTrace();
+        }
+        midiMap = loadMap();
+        if (midiMap != null) {
+            consoleState.setMidiMap(midiMap);
+        }
+    }
+
+    /**
+     * Reads map.xml as configured in the settings, and reports errors on the tray icon.
+     *
+     * @return The map, or null if it could not be read.
+     */
+    private MidiMap loadMap() {
+        try {
+            boolean streaming = !settings.getString("map.loader", "STAX").equalsIgnoreCase("DOM");
+            boolean cached = streaming && settings.getBoolean("map.cache.enabled", true);
+            long start = System.nanoTime();
+            MidiMap map;
+            if (cached) {
+                map = MidiMap.loadCompiled(MAP_PATHNAME, settings.getString("map.cache.file", "resources/map.bin"));
+            } else {
+                map = new MidiMap(MAP_PATHNAME, streaming);
+            }
+            System.out.printf("map.xml loaded in %.1f ms (%s)%n", (System.nanoTime() - start) / 1e6,
+                    cached ? "compiled cache" : streaming ? "StAX" : "DOM");
+            return map;
         } catch (ParserConfigurationException e) {
-            trayMenu.getTrayIcon().displayMessage(APP_NAME, "Parser configuration error: " + e.getLocalizedMessage(), TrayIcon.MessageType.ERROR);
+            notifier.displayMessage("Parser configuration error: " + e.getLocalizedMessage(), Notifier.MessageType.ERROR);
             e.printStackTrace();
         } catch (IOException e) {
-            trayMenu.getTrayIcon().displayMessage(APP_NAME, "Error reading map.xml: " + e.getLocalizedMessage(), TrayIcon.MessageType.ERROR);
+            notifier.displayMessage("Error reading map.xml: " + e.getLocalizedMessage(), Notifier.MessageType.ERROR);
             e.printStackTrace();
-        } catch (SAXException e) {
-            trayMenu.getTrayIcon().displayMessage(APP_NAME, "Error parsing map.xml: " + e.getLocalizedMessage(), TrayIcon.MessageType.ERROR);
+        } catch (SAXException | XMLStreamException e) {
+            notifier.displayMessage("Error parsing map.xml: " + e.getLocalizedMessage(), Notifier.MessageType.ERROR);
+            e.printStackTrace();
+        } catch (RuntimeException e) {
+            // Invalid values in an otherwise well-formed file
+            notifier.displayMessage("Error in map.xml: " + e, Notifier.MessageType.ERROR);
             e.printStackTrace();
         }
+        return null;
     }
-    public void connectDevices() {
-        closeDevices();
-        MidiDevice.Info[] infos = MidiSystem.getMidiDeviceInfo();
-        for (MidiDevice.Info info : infos) {
-            MidiDevice device;
-            try {
-                device = MidiSystem.getMidiDevice(info);
-            } catch (MidiUnavailableException e) {
-                trayMenu.getTrayIcon().displayMessage(APP_NAME, "MIDI error: " + e.getLocalizedMessage(), TrayIcon.MessageType.ERROR);
-                return;
-            }
-//            System.out.println(info.getName());
-
-            if (info.getName().contains("RSS M-400") && device.getMaxTransmitters() != 0) {
-                m400In = device;
-                try {
-                    m400In.open();
-                } catch (MidiUnavailableException e) {
-                    trayMenu.getTrayIcon().displayMessage(APP_NAME, "Could not open M-400 MIDI In port.", TrayIcon.MessageType.ERROR);
-                    return;
-                }
-            }
-            if (info.getName().contains("RSS M-400") && device.getMaxReceivers() != 0) {
-                m400Out = device;
-                try {
-                    m400Out.open();
-                } catch (MidiUnavailableException e) {
-                    trayMenu.getTrayIcon().displayMessage(APP_NAME, "Could not open M-400 MIDI Out port.", TrayIcon.MessageType.ERROR);
-                    return;
-                }
-            }
-            if (info.getName().equals("loopMidiIn") && device.getMaxReceivers() != 0) {
-                loopMidiIn = device;
-                try {
-                    loopMidiIn.open();
-                } catch (MidiUnavailableException e) {
-                    trayMenu.getTrayIcon().displayMessage(APP_NAME, "Could not open loopMidiIn.", TrayIcon.MessageType.ERROR);
-                    return;
-                }
-            }
-            if (info.getName().equals("loopMidiOut") && device.getMaxTransmitters() != 0) {
-                loopMidiOut = device;
-                try {
-                    loopMidiOut.open();
-                } catch (MidiUnavailableException e) {
-                    trayMenu.getTrayIcon().displayMessage(APP_NAME, "Could not open loopMidiOut.", TrayIcon.MessageType.ERROR);
-                    return;
-                }
-            }
-        }
-        // Error checking
-        if (m400In == null) {
-            trayMenu.getTrayIcon().displayMessage(APP_NAME, "M-400 (In port) device not found. Is the console plugged in and running?", TrayIcon.MessageType.ERROR);
+
+    private void startMapWatcher() {
+        if (!settings.getBoolean("map.watch.enabled", true)) {
             return;
         }
-        if (m400Out == null) {
-            trayMenu.getTrayIcon().displayMessage(APP_NAME, "M-400 (Out port) device not found. Is the console plugged in and running?", TrayIcon.MessageType.ERROR);
-            return;
+        try {
+            mapWatcher = new MapWatcher(MAP_PATHNAME, settings.getInt("map.watch.quietPeriod", 200), this::reloadMap);
+        } catch (IOException e) {
+            notifier.displayMessage("Changes of map.xml will not be picked up: " + e.getLocalizedMessage(), Notifier.MessageType.WARNING);
+            e.printStackTrace();
         }
-        if (loopMidiIn == null) {
-            trayMenu.getTrayIcon().displayMessage(APP_NAME, "loopMidiIn device not found. Is loopMIDI running?", TrayIcon.MessageType.ERROR);
+    }
+
+    /**
+     * Reads map.xml again and swaps the new map into the receivers, without
+     * touching the devices. If it cannot be read, the previous map stays in use.
+     */
+    public void reloadMap() {
+        long start = System.nanoTime();
+        MidiMap newMap = loadMap();
+        if (newMap == null) {
+            System.err.println("Keeping the previous map");
             return;
         }
-        if (loopMidiOut == null) {
-            trayMenu.getTrayIcon().displayMessage(APP_NAME, "loopMidiOut device not found. Is loopMIDI running?", TrayIcon.MessageType.ERROR);
-            return;
+        long swapStart = System.nanoTime();
+        consoleState.setMidiMap(newMap);
+        midiMap = newMap;
+        M400Receiver m400 = fromConsoleReceiver;
+        if (m400 != null) {
+            m400.setMidiMap(newMap);
         }
-        // Note: Checks for isOpen() are not necessary
-        // Get receivers
-        Receiver loopMidiReceiver = null;
-        try {
-            loopMidiReceiver = loopMidiIn.getReceiver();
-        } catch (MidiUnavailableException e) {
-            trayMenu.getTrayIcon().displayMessage(APP_NAME, "loopMidi receiver could not be retrieved. (This shouldn't happen.)", TrayIcon.MessageType.ERROR);
-            e.printStackTrace();
-            return;
+        LoopMidiReceiver loopMidi = fromDAWReceiver;
+        if (loopMidi != null) {
+            loopMidi.setMidiMap(newMap);
+        }
+        long end = System.nanoTime();
+        System.out.printf("map.xml reloaded in %.1f ms, swapped in %.1f us%n", (end - start) / 1e6, (end - swapStart) / 1e3);
+        notifier.displayMessage("map.xml reloaded", Notifier.MessageType.INFO);
+    }
+    public synchronized void connectDevices() {
+        closeDevices();
+        if (deviceProvider == null) {
+            deviceProvider = createDeviceProvider(settings, midiMap);
         }
-        Receiver m400Receiver = null;
         try {
-            m400Receiver = m400Out.getReceiver();
+            consolePorts = deviceProvider.openConsole();
+            dawPorts = deviceProvider.openDAW();
         } catch (MidiUnavailableException e) {
-            trayMenu.getTrayIcon().displayMessage(APP_NAME, "M-400 receiver could not be retrieved. (This shouldn't happen.)", TrayIcon.MessageType.ERROR);
-            e.printStackTrace();
+            notifier.displayMessage(e.getLocalizedMessage(), Notifier.MessageType.ERROR);
+            closeDevices();
             return;
         }
+        dawOutput.setReceiver(dawPorts.getOutput());
+        consoleOutput.setReceiver(consolePorts.getOutput());
+        Receiver loopMidiReceiver = dawOutput;
+        Receiver m400Receiver = consoleOutput;
+        if (settings.getBoolean("pacing.console.enabled", true)) {
+            consolePacer = new PacedReceiver("console", m400Receiver,
+                    settings.getDouble("pacing.console.bytesPerSecond", 3000),
+                    settings.getDouble("pacing.console.messagesPerSecond", 200),
+                    settings.getInt("pacing.console.burstBytes", 256),
+                    settings.getInt("pacing.console.burstMessages", 16));
+            m400Receiver = consolePacer;
+        }
+        // Outputs
+        nrpnOutput = new NrpnOutput(loopMidiReceiver,
+                settings.getBoolean("nrpn.runningStatus", false),
+                settings.getInt("nrpn.resyncInterval", 1000),
+                latencyStats);
+        ParameterOutput toDAW = nrpnOutput;
+        dawEchoSuppressor = createEchoSuppressor("DAW", toDAW, "echo.tolerance.daw");
+        if (dawEchoSuppressor != null) {
+            toDAW = dawEchoSuppressor;
+        }
+        toDAWCoalescer = createCoalescingOutput("to DAW", toDAW, "coalescing.toDAW", 2000);
+        if (toDAWCoalescer != null) {
+            toDAW = toDAWCoalescer;
+        }
+        ParameterOutput toConsole;
+        if (settings.getBoolean("sysex.batching.enabled", true)) {
+            // The batcher coalesces the values itself
+            toConsoleBatcher = new BatchingSysexOutput(m400Receiver, latencyStats,
+                    settings.getInt("sysex.batching.maxBytes", 64),
+                    settings.getInt("sysex.batching.maxLatency", 5));
+            toConsole = toConsoleBatcher;
+        } else {
+            toConsole = new SysexOutput(m400Receiver, latencyStats);
+        }
+        consoleEchoSuppressor = createEchoSuppressor("console", toConsole, "echo.tolerance.console");
+        if (consoleEchoSuppressor != null) {
+            toConsole = consoleEchoSuppressor;
+        }
+        if (toConsoleBatcher == null) {
+            toConsoleCoalescer = createCoalescingOutput("to console", toConsole, "coalescing.toConsole", 500);
+            if (toConsoleCoalescer != null) {
+                toConsole = toConsoleCoalescer;
+            }
+        }
+        toDAWOutput = toDAW;
+        toConsoleOutput = toConsole;
+        fromConsoleReceiver = new M400Receiver(toDAW, midiMap, consoleState, consoleEchoSuppressor);
+        consoleSync = new ConsoleSync(fromConsoleReceiver);
+        consoleReceiver = m400Receiver;
+        Receiver fromConsole = consoleSync;
+        fromConsolePipeline = createPipeline("console to DAW", fromConsole);
+        if (fromConsolePipeline != null) {
+            fromConsole = fromConsolePipeline;
+        }
+        fromDAWReceiver = new LoopMidiReceiver(toConsole, midiMap, consoleState, dawEchoSuppressor);
+        Receiver fromDAW = fromDAWReceiver;
+        // In case a reload swapped the map while the receivers were being created
+        fromConsoleReceiver.setMidiMap(midiMap);
+        fromDAWReceiver.setMidiMap(midiMap);
+        fromDAWPipeline = createPipeline("DAW to console", fromDAW);
+        if (fromDAWPipeline != null) {
+            fromDAW = fromDAWPipeline;
+        }
+        if (settings.getBoolean("record.enabled", false)) {
+            try {
+                recorder = new MidiRecorder(settings.getString("record.file", "recording.bin"),
+                        settings.getInt("record.capacity", 65536),
+                        settings.getInt("pipeline.maxMessageLength", 512));
+                fromConsole = recorder.tee(LatencyStats.Direction.CONSOLE_TO_DAW, fromConsole);
+                fromDAW = recorder.tee(LatencyStats.Direction.DAW_TO_CONSOLE, fromDAW);
+            } catch (IOException | IllegalArgumentException e) {
+                notifier.displayMessage("The recording could not be started: " + e.getLocalizedMessage(), Notifier.MessageType.WARNING);
+                e.printStackTrace();
+            }
+        }
         // Set receivers on the transmitters
-        try {
-            m400In.getTransmitter().setReceiver(new M400Receiver(loopMidiReceiver, midiMap));
-        } catch (MidiUnavailableException e) {
-            trayMenu.getTrayIcon().displayMessage(APP_NAME, "m400 transmitter could not be retrieved. (This shouldn't happen.)", TrayIcon.MessageType.ERROR);
-            e.printStackTrace();
+        consoleInput = fromConsole;
+        dawInput = fromDAW;
+        consolePorts.getInput().setReceiver(fromConsole);
+        dawPorts.getInput().setReceiver(fromDAW);
+        if (settings.getBoolean("sync.onConnect", true)) {
+            syncFromConsole();
+        }
+    }
+
+    private void startDeviceMonitor() {
+        if (!settings.getBoolean("monitor.enabled", true) || deviceProvider == null) {
             return;
         }
+        deviceMonitor = new DeviceMonitor(deviceProvider, this,
+                settings.getInt("monitor.interval", 2000),
+                settings.getInt("monitor.retries", 3));
+    }
+
+    @Override
+    public synchronized boolean isConnected(DeviceMonitor.Side side) {
+        return (side == DeviceMonitor.Side.CONSOLE ? consolePorts : dawPorts) != null;
+    }
+
+    /**
+     * Closes the ports of one side, and leaves the chains and the other side alone.
+     * Until the side is reconnected, the messages to it are dropped.
+     */
+    @Override
+    public synchronized void disconnect(DeviceMonitor.Side side) {
+        if (side == DeviceMonitor.Side.CONSOLE) {
+            consoleOutput.setReceiver(null);
+            closePorts(consolePorts);
+            consolePorts = null;
+        } else {
+            dawOutput.setReceiver(null);
+            closePorts(dawPorts);
+            dawPorts = null;
+        }
+        notifier.displayMessage(side.getDeviceName() + " disconnected, it will be reconnected when it is back.", Notifier.MessageType.WARNING);
+    }
+
+    /**
+     * Opens the ports of one side again, and puts them behind the chains.
+     * If the chains do not exist, because the devices could not be connected
+     * at all, everything is connected.
+     *
+     * @return Whether the side is connected.
+     */
+    @Override
+    public synchronized boolean reconnect(DeviceMonitor.Side side) {
+        if (consoleInput == null || dawInput == null) {
+            connectDevices();
+            return isConnected(side);
+        }
+        PortPair ports;
         try {
-            loopMidiOut.getTransmitter().setReceiver(new LoopMidiReceiver(m400Receiver, midiMap));
+            ports = side == DeviceMonitor.Side.CONSOLE ? deviceProvider.openConsole() : deviceProvider.openDAW();
         } catch (MidiUnavailableException e) {
-            trayMenu.getTrayIcon().displayMessage(APP_NAME, "m400 transmitter could not be retrieved. (This shouldn't happen.)", TrayIcon.MessageType.ERROR);
-            e.printStackTrace();
-            return;
+            System.err.println(e.getLocalizedMessage());
+            return false;
         }
+        if (side == DeviceMonitor.Side.CONSOLE) {
+            consolePorts = ports;
+            consoleOutput.setReceiver(ports.getOutput());
+            ports.getInput().setReceiver(consoleInput);
+        } else {
+            dawPorts = ports;
+            // The parts of the NRPN messages sent while disconnected are lost
+            nrpnOutput.reset();
+            dawOutput.setReceiver(ports.getOutput());
+            ports.getInput().setReceiver(dawInput);
+        }
+        notifier.displayMessage(side.getDeviceName() + " reconnected", Notifier.MessageType.INFO);
+        // The changes made on the console while it was out are requested
+        if (side == DeviceMonitor.Side.CONSOLE && settings.getBoolean("sync.onConnect", true)) {
+            syncFromConsole();
+        }
+        return true;
+    }
 
-        // scale exploration code
+    /**
+     * Closes the ports, which may fail if their device has disappeared.
+     */
+    private static void closePorts(PortPair ports) {
+        if (ports == null) {
+            return;
+        }
         try {
-            while(true) {
-                Scanner scanner = new Scanner(System.in);
-                String line = scanner.nextLine();
-
-                int value;
-                try {
-                    value = Integer.parseInt(line);
-                } catch (NumberFormatException e) {
-                    System.out.println("Give me an integer, man.");
-                    continue;
-                }
-                if (value < 0 || value > 16383) {
-                    System.out.println("Make it between 0 and 16383, please.");
-                };
-
-                byte[] valueParts = split(value);
-                long timeStamp = System.currentTimeMillis();
-                ShortMessage outMsg = new ShortMessage();
-                outMsg.setMessage(ShortMessage.CONTROL_CHANGE, 0, 99, 0);
-                loopMidiReceiver.send(outMsg, timeStamp);
-                outMsg.setMessage(ShortMessage.CONTROL_CHANGE, 0, 98, 0);
-                loopMidiReceiver.send(outMsg, timeStamp);
-                outMsg.setMessage(ShortMessage.CONTROL_CHANGE, 0, 6, valueParts[0]);
-                loopMidiReceiver.send(outMsg, timeStamp);
-                outMsg.setMessage(ShortMessage.CONTROL_CHANGE, 0, 38, valueParts[1]);
-                loopMidiReceiver.send(outMsg, timeStamp);
-            }
-        } catch (InvalidMidiDataException e) {
+            ports.close();
+        } catch (RuntimeException e) {
             e.printStackTrace();
         }
+    }
 
+    /**
+     * The real devices by default, or the simulated ones for running without them.
+     */
+    static DeviceProvider createDeviceProvider(Settings settings, MidiMap midiMap) {
+        if (settings.getString("device.provider", "SYSTEM").equalsIgnoreCase("SIMULATED")) {
+            return new SimulatedDeviceProvider(new SimulatedM400(midiMap, settings.getInt("device.simulated.maxReplyBytes", 256)));
+        }
+        return new SystemDeviceProvider(
+                settings.getString("device.console", "RSS M-400"),
+                settings.getString("device.dawIn", "loopMidiIn"),
+                settings.getString("device.dawOut", "loopMidiOut"));
     }
-    private void closeDevices() {
-        if (m400In != null) {
-            m400In.close();
-            m400In = null;
+
+    private CoalescingOutput createCoalescingOutput(String name, ParameterOutput output, String key, double defaultMaxRate) {
+        if (!settings.getBoolean(key + ".enabled", true)) {
+            return null;
         }
-        if (m400Out != null) {
-            m400Out.close();
-            m400Out = null;
+        return new CoalescingOutput(name, output, settings.getDouble(key + ".maxRate", defaultMaxRate));
+    }
+
+    private EchoSuppressor createEchoSuppressor(String name, ParameterOutput output, String toleranceKey) {
+        if (!settings.getBoolean("echo.enabled", true)) {
+            return null;
         }
-        if (loopMidiIn != null) {
-            loopMidiIn.close();
-            loopMidiIn = null;
+        return new EchoSuppressor(name, output, settings.getInt("echo.window", 250), settings.getInt(toleranceKey, 1));
+    }
+
+    private PipelineReceiver createPipeline(String name, Receiver receiver) {
+        if (!settings.getBoolean("pipeline.enabled", false)) {
+            return null;
         }
-        if (loopMidiOut != null) {
-            loopMidiOut.close();
-            loopMidiOut = null;
+        OverflowPolicy overflowPolicy;
+        try {
+            overflowPolicy = OverflowPolicy.valueOf(settings.getString("pipeline.overflowPolicy", "COALESCE"));
+        } catch (IllegalArgumentException e) {
+            System.err.println("Invalid pipeline.overflowPolicy, using COALESCE");
+            overflowPolicy = OverflowPolicy.COALESCE;
+        }
+        try {
+            return new PipelineReceiver(name, receiver,
+                    settings.getInt("pipeline.capacity", 4096),
+                    settings.getInt("pipeline.maxMessageLength", 512),
+                    overflowPolicy);
+        } catch (IllegalArgumentException e) {
+            notifier.displayMessage("Invalid pipeline.capacity, the " + name + " pipeline is disabled: " + e.getLocalizedMessage(), Notifier.MessageType.WARNING);
+            return null;
         }
     }
+
+    private synchronized void closeDevices() {
+        consoleSync = null;
+        consoleInput = null;
+        dawInput = null;
+        consoleOutput.setReceiver(null);
+        dawOutput.setReceiver(null);
+        consoleReceiver = null;
+        toDAWOutput = null;
+        toConsoleOutput = null;
+        fromConsoleReceiver = null;
+        fromDAWReceiver = null;
+        if (fromConsolePipeline != null) {
+            fromConsolePipeline.close();
+            fromConsolePipeline = null;
+        }
+        if (fromDAWPipeline != null) {
+            fromDAWPipeline.close();
+            fromDAWPipeline = null;
+        }
+        if (toDAWCoalescer != null) {
+            toDAWCoalescer.close();
+            toDAWCoalescer = null;
+        }
+        if (toConsoleCoalescer != null) {
+            toConsoleCoalescer.close();
+            toConsoleCoalescer = null;
+        }
+        if (toConsoleBatcher != null) {
+            toConsoleBatcher.close();
+            toConsoleBatcher = null;
+        }
+        consolePacer = null;
+        if (recorder != null) {
+            recorder.close();
+            recorder = null;
+        }
+        closePorts(consolePorts);
+        consolePorts = null;
+        closePorts(dawPorts);
+        dawPorts = null;
+    }
     public void quit() {
+        if (mapWatcher != null) {
+            mapWatcher.close();
+        }
+        if (deviceMonitor != null) {
+            deviceMonitor.close();
+        }
         closeDevices();
-        trayMenu.destroy();
+        notifier.destroy();
         System.exit(0);
     }
 
-    public TrayMenu getTrayMenu() {
-        return trayMenu;
+    public Settings getSettings() {
+        return settings;
+    }
+
+    /**
+     * @return Human-readable statistics of the message flow, one line per stage.
+     */
+    public String getStatistics() {
+        StringBuilder statistics = new StringBuilder();
+        if (fromConsolePipeline != null) {
+            statistics.append(fromConsolePipeline.getStatistics()).append('\n');
+        }
+        if (fromDAWPipeline != null) {
+            statistics.append(fromDAWPipeline.getStatistics()).append('\n');
+        }
+        if (toDAWCoalescer != null) {
+            statistics.append(toDAWCoalescer.getStatistics()).append('\n');
+        }
+        if (toConsoleCoalescer != null) {
+            statistics.append(toConsoleCoalescer.getStatistics()).append('\n');
+        }
+        if (toConsoleBatcher != null) {
+            statistics.append(toConsoleBatcher.getStatistics()).append('\n');
+        }
+        if (consolePacer != null) {
+            statistics.append(consolePacer.getStatistics()).append('\n');
+        }
+        if (recorder != null) {
+            statistics.append(recorder.getStatistics()).append('\n');
+        }
+        if (nrpnOutput != null) {
+            statistics.append(nrpnOutput.getStatistics()).append('\n');
+        }
+        M400Receiver m400 = fromConsoleReceiver;
+        if (m400 != null && m400.getChecksumErrors() > 0) {
+            statistics.append("Console checksum errors: ").append(m400.getChecksumErrors()).append('\n');
+        }
+        if (dawEchoSuppressor != null) {
+            statistics.append(dawEchoSuppressor.getStatistics()).append('\n');
+        }
+        if (consoleEchoSuppressor != null) {
+            statistics.append(consoleEchoSuppressor.getStatistics()).append('\n');
+        }
+        if (midiMap != null) {
+            statistics.append("Console state: ").append(consoleState.getKnownCount())
+                    .append(" of ").append(midiMap.getParameterCount()).append(" values known\n");
+        }
+        if (deviceMonitor != null) {
+            statistics.append(deviceMonitor.getStatistics()).append('\n');
+        }
+        if (statistics.length() == 0) {
+            return "No statistics available.";
+        }
+        return statistics.toString().trim();
+    }
+
+    /**
+     * Sends every known parameter value to the DAW in the background.
+     */
+    public void resyncDAW() {
+        resyncExecutor.execute(() -> resync(toDAWOutput, true));
+    }
+
+    /**
+     * Sends every known parameter value to the console in the background.
+     */
+    public void resyncConsole() {
+        resyncExecutor.execute(() -> resync(toConsoleOutput, false));
     }
 
-    private byte[] split(int number) {
-        if (number < 0 || 16383 < number) {
-            throw new IllegalArgumentException("expected unsigned 14-bit number");
+    private void resync(ParameterOutput output, boolean toDAW) {
+        String target = toDAW ? "DAW" : "console";
+        if (output == null) {
+            notifier.displayMessage("Cannot resync the " + target + ", it is not connected.", Notifier.MessageType.WARNING);
+            return;
+        }
+        try {
+            long start = System.nanoTime();
+            int sent = consoleState.push(output, toDAW, settings.getDouble("state.resync.maxRate", 500));
+            System.out.printf("Resynced %d values to the %s in %.1f ms%n", sent, target, (System.nanoTime() - start) / 1e6);
+        } catch (InvalidMidiDataException e) {
+            notifier.displayMessage("Error resyncing the " + target + ": " + e.getLocalizedMessage(), Notifier.MessageType.ERROR);
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Requests the whole state of the console in the background.
+     * The replies go through the console receiver, so they reach the DAW
+     * and the console state like any other change.
+     */
+    public void syncFromConsole() {
+        resyncExecutor.execute(() -> {
+            ConsoleSync sync = consoleSync;
+            Receiver console = consoleReceiver;
+            MidiMap map = midiMap;
+            if (sync == null || console == null || map == null) {
+                notifier.displayMessage("Cannot sync from the console, it is not connected.", Notifier.MessageType.WARNING);
+                return;
+            }
+            try {
+                String result = sync.sync(map, console,
+                        settings.getInt("sync.window", 4), settings.getInt("sync.timeout", 1000));
+                System.out.println(result);
+            } catch (InvalidMidiDataException e) {
+                notifier.displayMessage("Error requesting the console's state: " + e.getLocalizedMessage(), Notifier.MessageType.ERROR);
+                e.printStackTrace();
+                return;
+            } catch (InterruptedException e) {
+                // Quitting
+            }
+        });
+    }
+
+    public void saveSnapshot() {
+        String pathname = settings.getString("state.snapshotFile", "snapshot.bin");
+        try {
+            int count = consoleState.save(pathname);
+            notifier.displayMessage(count + " values saved to " + pathname, Notifier.MessageType.INFO);
+        } catch (IOException e) {
+            notifier.displayMessage("Error writing " + pathname + ": " + e.getLocalizedMessage(), Notifier.MessageType.ERROR);
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Loads the snapshot file into the state, and pushes it to the console, then to the DAW.
+     */
+    public void loadSnapshot() {
+        String pathname = settings.getString("state.snapshotFile", "snapshot.bin");
+        try {
+            int count = consoleState.load(pathname);
+            notifier.displayMessage(count + " values loaded from " + pathname, Notifier.MessageType.INFO);
+        } catch (IOException e) {
+            notifier.displayMessage("Error reading " + pathname + ": " + e.getLocalizedMessage(), Notifier.MessageType.ERROR);
+            e.printStackTrace();
+            return;
+        }
+        resyncConsole();
+        resyncDAW();
+    }
+
+    /**
+     * Appends the latency percentiles to the latency log file.
+     */
+    public void dumpLatency() {
+        String pathname = settings.getString("latency.logFile", "latency.log");
+        try {
+            latencyStats.dump(pathname);
+            notifier.displayMessage("Latency statistics written to " + pathname, Notifier.MessageType.INFO);
+        } catch (IOException e) {
+            notifier.displayMessage("Error writing " + pathname + ": " + e.getLocalizedMessage(), Notifier.MessageType.ERROR);
+            e.printStackTrace();
         }
-        return new byte[]{(byte)(number >> 7), (byte)(number & 127)};
     }
 }
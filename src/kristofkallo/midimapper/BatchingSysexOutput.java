@@ -0,0 +1,336 @@
+package kristofkallo.midimapper;
+
+import kristofkallo.midimapper.parameter.Parameter;
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.Receiver;
+import javax.sound.midi.SysexMessage;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static kristofkallo.midimapper.MidiDataTransform.toByteArray;
+
+/**
+ * Sends parameter values to the console as Data Set SysEx messages, packing
+ * the values of adjacent addresses into a single message.
+ *
+ * The values are collected for a short window after the first one arrives.
+ * Like in {@link CoalescingOutput}, every parameter has a slot, so a newer value
+ * replaces a waiting one, and a value of a previous map is moved aside and sent
+ * with the batch instead of being replaced. Then a dedicated sender thread sorts the waiting values
+ * by address, and sends every run of parameters that follow each other without
+ * a gap within a channel block as one message, in address order. A message
+ * carries at most the configured number of data bytes.
+ *
+ * A single parameter change costs the 7-byte header, the address, the checksum
+ * and EOX, so a snapshot recall in the DAW sends a fraction of the bytes it
+ * would take one message per parameter.
+ */
+public class BatchingSysexOutput implements ParameterOutput {
+    private final Receiver receiver;
+    private final LatencyStats latencyStats;
+    private final int maxBatchBytes;
+    private final long maxLatencyNanos;
+
+    private final Object lock = new Object();
+    // The slots, indexed by the parameter index. The parameter is null if the slot is empty.
+    private Parameter[] pendingParameters = new Parameter[0];
+    private int[] pendingValues = new int[0];
+    private long[] pendingArrivals = new long[0];
+    // The indices of the non-empty slots, in the order they were filled
+    private int[] pendingIndices = new int[0];
+    private int pendingCount;
+    // Values moved out of their slot by a parameter of a new map, in the order they were moved
+    private final List<DisplacedValue> displacedValues = new ArrayList<>();
+    private int pendingBytes;
+    private long firstPendingNanos;
+
+    // Used by the sender thread only
+    private Parameter[] batchParameters = new Parameter[0];
+    private int[] batchValues = new int[0];
+    private long[] batchArrivals = new long[0];
+    // The address in the upper, the position in the batch in the lower 32 bits, for sorting
+    private long[] batchKeys = new long[0];
+    private byte[] outMsgData;
+    private final SysexMessage outMsg = new SysexMessage();
+
+    private long receivedCount;
+    private long coalescedCount;
+    private long sentCount;
+    private long messageCount;
+    private long byteCount;
+
+    private volatile boolean running = true;
+    private final Thread senderThread;
+
+    /**
+     * @param receiver The MIDI input of the console.
+     * @param latencyStats Where to record the latency of the values, null if not needed.
+     * @param maxBatchBytes The maximum number of data bytes in a message.
+     * @param maxLatencyMillis How long to collect values before sending them.
+     */
+    public BatchingSysexOutput(Receiver receiver, LatencyStats latencyStats, int maxBatchBytes, long maxLatencyMillis) {
+        this.receiver = receiver;
+        this.latencyStats = latencyStats;
+        this.maxBatchBytes = Math.max(maxBatchBytes, 1);
+        this.maxLatencyNanos = TimeUnit.MILLISECONDS.toNanos(maxLatencyMillis);
+        outMsgData = new byte[M400ByteCode.DATA_OFFSET + this.maxBatchBytes + 2];
+        senderThread = new Thread(this::runSender, "Batching SysEx sender");
+        senderThread.setDaemon(true);
+        senderThread.start();
+    }
+
+    @Override
+    public void send(Parameter parameter, int value, long timeStamp, long arrivalNanos) {
+        int index = parameter.getIndex();
+        if (index < 0) {
+            throw new IllegalArgumentException("parameter is not indexed");
+        }
+        synchronized (lock) {
+            receivedCount++;
+            ensureCapacity(index + 1);
+            Parameter waiting = pendingParameters[index];
+            if (waiting == parameter) {
+                // Replace the waiting value
+                coalescedCount++;
+            } else {
+                if (waiting != null) {
+                    // A different parameter of a previous map, its value must still be sent
+                    displacedValues.add(new DisplacedValue(waiting, pendingValues[index], pendingArrivals[index]));
+                } else {
+                    if (pendingCount == 0) {
+                        firstPendingNanos = System.nanoTime();
+                        lock.notify();
+                    }
+                    pendingIndices[pendingCount++] = index;
+                }
+                pendingBytes += parameter.getLengthInBytes();
+                if (pendingBytes >= maxBatchBytes) {
+                    // A full message is waiting, there is no point in waiting any longer
+                    lock.notify();
+                }
+            }
+            pendingParameters[index] = parameter;
+            pendingValues[index] = value;
+            pendingArrivals[index] = arrivalNanos;
+        }
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= pendingParameters.length) {
+            return;
+        }
+        int newCapacity = Math.max(capacity, pendingParameters.length * 2);
+        pendingParameters = Arrays.copyOf(pendingParameters, newCapacity);
+        pendingValues = Arrays.copyOf(pendingValues, newCapacity);
+        pendingArrivals = Arrays.copyOf(pendingArrivals, newCapacity);
+        pendingIndices = Arrays.copyOf(pendingIndices, newCapacity);
+    }
+
+    private void runSender() {
+        while (running) {
+            int count;
+            synchronized (lock) {
+                try {
+                    while (running && pendingCount == 0) {
+                        lock.wait();
+                    }
+                    // Collect until the window is over or a full message is waiting
+                    long wait;
+                    while (running && pendingBytes < maxBatchBytes &&
+                            (wait = firstPendingNanos + maxLatencyNanos - System.nanoTime()) > 0) {
+                        TimeUnit.NANOSECONDS.timedWait(lock, wait);
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (!running) {
+                    return;
+                }
+                count = takeBatch();
+            }
+            try {
+                sendBatch(count);
+            } catch (InvalidMidiDataException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Moves the waiting values into the batch arrays and empties the slots.
+     * Must be called with the lock held.
+     *
+     * @return The number of values in the batch.
+     */
+    private int takeBatch() {
+        int displacedCount = displacedValues.size();
+        int count = displacedCount + pendingCount;
+        if (batchParameters.length < count) {
+            int newCapacity = Math.max(count, batchParameters.length * 2);
+            batchParameters = new Parameter[newCapacity];
+            batchValues = new int[newCapacity];
+            batchArrivals = new long[newCapacity];
+            batchKeys = new long[newCapacity];
+        }
+        // The displaced values first, so that they go before a newer value of the same address
+        for (int i = 0; i < displacedCount; i++) {
+            DisplacedValue displaced = displacedValues.get(i);
+            batchParameters[i] = displaced.parameter;
+            batchValues[i] = displaced.value;
+            batchArrivals[i] = displaced.arrivalNanos;
+            batchKeys[i] = (long) getAddress(displaced.parameter) << 32 | i;
+        }
+        displacedValues.clear();
+        for (int i = displacedCount; i < count; i++) {
+            int index = pendingIndices[i - displacedCount];
+            Parameter parameter = pendingParameters[index];
+            batchParameters[i] = parameter;
+            batchValues[i] = pendingValues[index];
+            batchArrivals[i] = pendingArrivals[index];
+            batchKeys[i] = (long) getAddress(parameter) << 32 | i;
+            pendingParameters[index] = null;
+        }
+        pendingCount = 0;
+        pendingBytes = 0;
+        sentCount += count;
+        return count;
+    }
+
+    /**
+     * Sends the batch in address order, one message per run of adjacent addresses.
+     */
+    private void sendBatch(int count) throws InvalidMidiDataException {
+        Arrays.sort(batchKeys, 0, count);
+        int runStart = 0;
+        while (runStart < count) {
+            // Extend the run while the next parameter starts where the previous one ends
+            Parameter first = batchParameters[(int) batchKeys[runStart]];
+            int runAddress = getAddress(first);
+            int runEnd = runStart + 1;
+            int runBytes = first.getLengthInBytes();
+            while (runEnd < count) {
+                Parameter next = batchParameters[(int) batchKeys[runEnd]];
+                int nextAddress = getAddress(next);
+                if (nextAddress != runAddress + runBytes ||
+                        nextAddress >>> 14 != runAddress >>> 14 ||
+                        runBytes + next.getLengthInBytes() > maxBatchBytes) {
+                    break;
+                }
+                runBytes += next.getLengthInBytes();
+                runEnd++;
+            }
+            sendRun(runStart, runEnd, runBytes);
+            runStart = runEnd;
+        }
+        // Do not hold on to the parameters of a replaced map
+        Arrays.fill(batchParameters, 0, count, null);
+    }
+
+    private void sendRun(int runStart, int runEnd, int runBytes) throws InvalidMidiDataException {
+        Parameter first = batchParameters[(int) batchKeys[runStart]];
+        int length = M400ByteCode.DATA_OFFSET + runBytes + 2;
+        if (outMsgData.length < length) {
+            // A parameter longer than the maximum batch size is sent alone
+            outMsgData = new byte[length];
+        }
+        // The header and the address of the first parameter
+        System.arraycopy(first.getSysexTemplate(), 0, outMsgData, 0, M400ByteCode.DATA_OFFSET);
+        int offset = M400ByteCode.DATA_OFFSET;
+        for (int i = runStart; i < runEnd; i++) {
+            int position = (int) batchKeys[i];
+            Parameter parameter = batchParameters[position];
+            toByteArray(batchValues[position], outMsgData, offset, parameter.getLengthInBytes());
+            offset += parameter.getLengthInBytes();
+        }
+        M400ByteCode.putChecksum(outMsgData, offset);
+        outMsgData[offset + 1] = M400ByteCode.EOX.getCode();
+        outMsg.setMessage(outMsgData, length);
+        receiver.send(outMsg, -1);
+        if (latencyStats != null) {
+            for (int i = runStart; i < runEnd; i++) {
+                int position = (int) batchKeys[i];
+                latencyStats.record(LatencyStats.Direction.DAW_TO_CONSOLE, batchParameters[position], batchArrivals[position]);
+            }
+        }
+        synchronized (lock) {
+            messageCount++;
+            byteCount += length;
+        }
+    }
+
+    /**
+     * @return The channel and the parameter address packed into 28 bits.
+     */
+    private static int getAddress(Parameter parameter) {
+        return parameter.getChannel().getAddress().getSysexKey() << 14 | parameter.getAddress().getSysexKey();
+    }
+
+    /**
+     * Stops the sender thread. Values still waiting are discarded.
+     */
+    public void close() {
+        running = false;
+        synchronized (lock) {
+            lock.notify();
+        }
+        senderThread.interrupt();
+    }
+
+    /**
+     * @return The number of values that were replaced by a newer value before being sent.
+     */
+    public long getCoalescedCount() {
+        synchronized (lock) {
+            return coalescedCount;
+        }
+    }
+
+    /**
+     * @return The number of parameters whose value is waiting to be sent.
+     */
+    public int getQueueDepth() {
+        synchronized (lock) {
+            return pendingCount + displacedValues.size();
+        }
+    }
+
+    /**
+     * @return The number of SysEx bytes sent to the console.
+     */
+    public long getByteCount() {
+        synchronized (lock) {
+            return byteCount;
+        }
+    }
+
+    /**
+     * @return The number of SysEx messages sent to the console.
+     */
+    public long getMessageCount() {
+        synchronized (lock) {
+            return messageCount;
+        }
+    }
+
+    public String getStatistics() {
+        synchronized (lock) {
+            return String.format("to console (batching): %d received, %d sent, %d coalesced, %d waiting, %d messages, %d bytes",
+                    receivedCount, sentCount, coalescedCount, pendingCount + displacedValues.size(), messageCount, byteCount);
+        }
+    }
+
+    private static class DisplacedValue {
+        final Parameter parameter;
+        final int value;
+        final long arrivalNanos;
+
+        DisplacedValue(Parameter parameter, int value, long arrivalNanos) {
+            this.parameter = parameter;
+            this.value = value;
+            this.arrivalNanos = arrivalNanos;
+        }
+    }
+}
@@ -0,0 +1,317 @@
+package kristofkallo.midimapper;
+
+import kristofkallo.midimapper.parameter.Parameter;
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.MidiUnavailableException;
+import javax.sound.midi.Receiver;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.SysexMessage;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Measures the scale of a parameter, which console value each NRPN value of
+ * the DAW ends up as, instead of typing the points in by hand.
+ *
+ * It takes the place of the application, and closes the loop between the DAW
+ * and the console itself. It sweeps the 14-bit NRPN range in steps at a
+ * controlled rate, and sends each value as it is to the DAW, on the port the
+ * application sends its NRPN messages on. The DAW has to send the parameter
+ * back on the port the application reads from, which is what a control that
+ * is MIDI-learned with feedback does. The returned value goes through the
+ * mapper's own DAW to console chain, {@link LoopMidiReceiver} and
+ * {@link SysexOutput}, to the console. The value that the console took is then
+ * read back with a Data Request (RQ1), and paired with the NRPN value sent to
+ * the DAW. The values the console took and the NRPN values that led to them
+ * are the points of the scale. Where several NRPN values led to the same
+ * console value, only the first is kept.
+ *
+ * A step that the DAW does not send back until the next step is skipped. If
+ * the DAW does not send back any of them, it is not wired for feedback, and
+ * no scale is written.
+ *
+ * Run it from the project directory, with the application not running, with
+ * the channel id and the parameter name, and optionally the number of steps,
+ * the steps per second and the output file as arguments. It uses the devices
+ * of the settings, and writes the scale element for map.xml.
+ */
+public class Calibrator implements Receiver {
+    private final Parameter parameter;
+    private final int address;
+
+    private final Object replyLock = new Object();
+    // Guarded by replyLock
+    private boolean returned;
+    private boolean replied;
+    private int reply;
+
+    private int timedOut;
+    private int unreturned;
+
+    /**
+     * @param parameter The parameter to measure. Set the calibrator as the receiver
+     *                  of the console's messages, and the receiver of {@link #createDAWReceiver(Receiver, MidiMap)}
+     *                  as the receiver of the DAW's messages.
+     */
+    public Calibrator(Parameter parameter) {
+        this.parameter = parameter;
+        address = parameter.getChannel().getAddress().getSysexKey() << 14 | parameter.getAddress().getSysexKey();
+    }
+
+    /**
+     * @param console The receiver of the console's MIDI input.
+     * @return The receiver for the messages of the DAW, which forwards them to the
+     *         console the same way as the application, and notes when the DAW
+     *         has sent back the parameter.
+     */
+    public Receiver createDAWReceiver(Receiver console, MidiMap midiMap) {
+        SysexOutput output = new SysexOutput(console);
+        return new LoopMidiReceiver((parameter, value, timeStamp, arrivalNanos) -> {
+            output.send(parameter, value, timeStamp, arrivalNanos);
+            if (parameter == this.parameter) {
+                synchronized (replyLock) {
+                    returned = true;
+                    replyLock.notifyAll();
+                }
+            }
+        }, midiMap);
+    }
+
+    /**
+     * Sweeps the NRPN range, and returns when every step has been measured, skipped or has timed out.
+     *
+     * @param daw The receiver of the port towards the DAW.
+     * @param console The receiver of the console's MIDI input.
+     * @param steps The number of NRPN values, evenly spread from 0 to 16383.
+     * @param rate The number of steps per second.
+     * @param timeoutMillis How long to wait for the console's reply to a Data Request.
+     * @return The points of the scale, the console value and the NRPN value of each,
+     *         in the order of the NRPN values.
+     */
+    public List<int[]> sweep(Receiver daw, Receiver console, int steps, double rate, long timeoutMillis) throws InvalidMidiDataException, InterruptedException {
+        ShortMessage nrpnMessage = new ShortMessage();
+        byte[] request = ConsoleSync.createRequestMessage(address, parameter.getLengthInBytes());
+        SysexMessage requestMessage = new SysexMessage();
+        long intervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+        List<int[]> points = new ArrayList<>();
+        timedOut = 0;
+        unreturned = 0;
+        long next = System.nanoTime();
+        for (int i = 0; i < steps; i++) {
+            int nrpn = steps == 1 ? 0 : (int) Math.round((double) i * 16383 / (steps - 1));
+            synchronized (replyLock) {
+                returned = false;
+            }
+            sendNrpn(daw, nrpnMessage, nrpn);
+            next += intervalNanos;
+            if (!awaitReturn(next)) {
+                unreturned++;
+                continue;
+            }
+            // The value has been sent to the console before the request
+            synchronized (replyLock) {
+                replied = false;
+            }
+            requestMessage.setMessage(request, request.length);
+            console.send(requestMessage, -1);
+            Integer value = awaitReply(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis));
+            if (value == null) {
+                timedOut++;
+            } else if (points.isEmpty() || points.get(points.size() - 1)[0] != value) {
+                points.add(new int[]{value, nrpn});
+            }
+            long wait = next - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+        }
+        return points;
+    }
+
+    /**
+     * Sends the value with the parameter's NRPN, the same way as {@link NrpnOutput}, but without running status.
+     */
+    private void sendNrpn(Receiver daw, ShortMessage message, int value) throws InvalidMidiDataException {
+        message.setMessage(ShortMessage.CONTROL_CHANGE, 0, LoopMidiReceiver.NRPN_STAGE_CHANNEL, parameter.getChannel().getAddress().getNrpn());
+        daw.send(message, -1);
+        message.setMessage(ShortMessage.CONTROL_CHANGE, 0, LoopMidiReceiver.NRPN_STAGE_PARAM, parameter.getAddress().getNrpn());
+        daw.send(message, -1);
+        message.setMessage(ShortMessage.CONTROL_CHANGE, 0, LoopMidiReceiver.NRPN_STAGE_VALUE_MSB, value >> 7);
+        daw.send(message, -1);
+        message.setMessage(ShortMessage.CONTROL_CHANGE, 0, LoopMidiReceiver.NRPN_STAGE_VALUE_LSB, value & 127);
+        daw.send(message, -1);
+    }
+
+    /**
+     * @param deadline The {@link System#nanoTime()} until which to wait.
+     * @return Whether the DAW has sent back the parameter until the deadline.
+     */
+    private boolean awaitReturn(long deadline) throws InterruptedException {
+        synchronized (replyLock) {
+            while (!returned) {
+                long wait = deadline - System.nanoTime();
+                if (wait <= 0) {
+                    return false;
+                }
+                TimeUnit.NANOSECONDS.timedWait(replyLock, wait);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * @param deadline The {@link System#nanoTime()} until which to wait.
+     * @return The value the console reported, or null if it did not until the deadline.
+     */
+    private Integer awaitReply(long deadline) throws InterruptedException {
+        synchronized (replyLock) {
+            while (!replied) {
+                long wait = deadline - System.nanoTime();
+                if (wait <= 0) {
+                    return null;
+                }
+                TimeUnit.NANOSECONDS.timedWait(replyLock, wait);
+            }
+            return reply;
+        }
+    }
+
+    /**
+     * @return The number of steps of the last sweep without a reply.
+     */
+    public int getTimedOut() {
+        return timedOut;
+    }
+
+    /**
+     * @return The number of steps of the last sweep that the DAW did not send back.
+     */
+    public int getUnreturned() {
+        return unreturned;
+    }
+
+    /**
+     * Takes the value of the parameter from the Data Set messages that contain it.
+     */
+    @Override
+    public void send(MidiMessage message, long timeStamp) {
+        byte[] msg = MidiMessageAccess.bufferOf(message);
+        int length = message.getLength();
+        if (!DataSetDecoder.isDataSet(msg, length) || !DataSetDecoder.isChecksumValid(msg, length)) {
+            return;
+        }
+        int start = DataSetDecoder.getStartAddress(msg);
+        if (start < 0 || address < start || address + parameter.getLengthInBytes() > start + DataSetDecoder.getDataLength(length)) {
+            return;
+        }
+        int value = DataSetDecoder.decodeValue(msg, M400ByteCode.DATA_OFFSET + address - start, parameter);
+        synchronized (replyLock) {
+            reply = value;
+            replied = true;
+            replyLock.notifyAll();
+        }
+    }
+
+    @Override
+    public void close() {
+    }
+
+    /**
+     * Writes the points as a scale element of map.xml.
+     */
+    public static void writeScale(PrintWriter writer, String scaleId, List<int[]> points) {
+        writer.printf("\t<scale id=\"%s\">%n", scaleId);
+        for (int[] point : points) {
+            writer.printf("\t\t<point x=\"%d\" y=\"%d\"/>%n", point[0], point[1]);
+        }
+        writer.printf("\t</scale>%n");
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("Usage: Calibrator <channel id> <parameter name> [steps=129] [rate=20] [output=<scale id>.xml]");
+            System.err.println("Wiring: the console and the loopMIDI ports of the settings, with the application stopped.");
+            System.err.println("The DAW must send the parameter's NRPN back to the application's input port when it changes,");
+            System.err.println("e.g. a MIDI-learned control with feedback; the calibrator forwards it to the console.");
+            System.exit(2);
+        }
+        int steps = args.length > 2 ? Integer.parseInt(args[2]) : 129;
+        double rate = args.length > 3 ? Double.parseDouble(args[3]) : 20;
+        Settings settings;
+        try {
+            settings = new Settings("resources/settings.properties");
+        } catch (IOException e) {
+            System.err.println("Error reading settings.properties, using defaults: " + e.getLocalizedMessage());
+            settings = new Settings();
+        }
+        MidiMap midiMap = new MidiMap(App.MAP_PATHNAME, true);
+        Parameter parameter = findParameter(midiMap, args[0], args[1]);
+        if (parameter == null) {
+            System.err.println("Parameter " + args[1] + " of channel " + args[0] + " not found in " + App.MAP_PATHNAME);
+            System.exit(2);
+        }
+        String scaleId = MidiMap.getScaleId(parameter.getName());
+        String pathname = args.length > 4 ? args[4] : scaleId + ".xml";
+
+        DeviceProvider deviceProvider = App.createDeviceProvider(settings, midiMap);
+        PortPair consolePorts;
+        PortPair dawPorts;
+        try {
+            consolePorts = deviceProvider.openConsole();
+        } catch (MidiUnavailableException e) {
+            System.err.println(e.getLocalizedMessage());
+            System.exit(1);
+            return;
+        }
+        try {
+            dawPorts = deviceProvider.openDAW();
+        } catch (MidiUnavailableException e) {
+            consolePorts.close();
+            System.err.println(e.getLocalizedMessage());
+            System.exit(1);
+            return;
+        }
+        Calibrator calibrator = new Calibrator(parameter);
+        consolePorts.getInput().setReceiver(calibrator);
+        dawPorts.getInput().setReceiver(calibrator.createDAWReceiver(consolePorts.getOutput(), midiMap));
+        List<int[]> points;
+        try {
+            points = calibrator.sweep(dawPorts.getOutput(), consolePorts.getOutput(), steps, rate, settings.getInt("sync.timeout", 1000));
+        } finally {
+            dawPorts.close();
+            consolePorts.close();
+        }
+        System.out.printf("%d steps of %s %s: %d points, %d not sent back by the DAW, %d timed out%n",
+                steps, args[0], parameter.getName(), points.size(), calibrator.getUnreturned(), calibrator.getTimedOut());
+        if (calibrator.getUnreturned() == steps) {
+            System.err.println("The DAW did not send back the parameter, it is not wired for feedback on the port "
+                    + "the application reads from. No scale written.");
+            System.exit(1);
+        }
+        try (PrintWriter writer = new PrintWriter(pathname, "UTF-8")) {
+            writeScale(writer, scaleId, points);
+        }
+        System.out.println("Written to " + pathname);
+        System.exit(calibrator.getTimedOut() > 0 ? 1 : 0);
+    }
+
+    private static Parameter findParameter(MidiMap midiMap, String channelId, String name) {
+        for (Channel channel : midiMap.getChannels()) {
+            if (!channel.getId().equals(channelId)) {
+                continue;
+            }
+            for (Parameter parameter : channel.getParameters()) {
+                if (parameter.getName().equals(name)) {
+                    return parameter;
+                }
+            }
+        }
+        return null;
+    }
+}
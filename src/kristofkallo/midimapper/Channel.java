@@ -3,18 +3,33 @@ package kristofkallo.midimapper;
 import kristofkallo.midimapper.parameter.Parameter;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 
 public class Channel {
     private final String id; // TODO: id and name probably not needed
     private final String name;
     private final Address address;
     private final ArrayList<Parameter> parameters;
+    /**
+     * Parameters indexed by their packed SysEx address key.
+     * The array is grown as parameters are put, so it is only as long as
+     * the highest parameter address in the channel.
+     */
+    private Parameter[] parametersByAddress;
+    /**
+     * Parameters indexed by their NRPN.
+     */
+    private final Parameter[] parametersByNrpn;
 
     public Channel(String id, String name, Address address) {
         this.id = id;
         this.name = name;
         this.address = address;
         this.parameters = new ArrayList<>();
+        this.parametersByAddress = new Parameter[0];
+        this.parametersByNrpn = new Parameter[Address.NRPN_COUNT];
     }
 
     public String getId() {
@@ -27,19 +42,40 @@ public class Channel {
         return address;
     }
 
+    public List<Parameter> getParameters() {
+        return Collections.unmodifiableList(parameters);
+    }
+
     public Parameter getParameterByAddress(byte address0, byte address1) {
-        return parameters.stream()
-                .filter(p -> p.getAddress().getSysex0() == address0 && p.getAddress().getSysex1() == address1)
-                .findAny()
-                .orElse(null);
+        int key = Address.sysexKey(address0, address1);
+        if (key < 0 || key >= parametersByAddress.length) {
+            return null;
+        }
+        return parametersByAddress[key];
     }
     public Parameter getParameterByNrpn(byte nrpn) {
-        return parameters.stream()
-                .filter(p -> p.getAddress().getNrpn() == nrpn)
-                .findAny()
-                .orElse(null);
+        if (nrpn < 0) {
+            return null;
+        }
+        return parametersByNrpn[nrpn];
     }
     public void putParameter(Parameter parameter) {
         parameters.add(parameter);
+        parameter.setChannel(this);
+        Address address = parameter.getAddress();
+        int key = address.getSysexKey();
+        if (key >= 0) {
+            if (key >= parametersByAddress.length) {
+                parametersByAddress = Arrays.copyOf(parametersByAddress, key + 1);
+            }
+            // The first parameter put with a given address wins
+            if (parametersByAddress[key] == null) {
+                parametersByAddress[key] = parameter;
+            }
+        }
+        byte nrpn = address.getNrpn();
+        if (nrpn >= 0 && parametersByNrpn[nrpn] == null) {
+            parametersByNrpn[nrpn] = parameter;
+        }
     }
 }
@@ -0,0 +1,245 @@
+package kristofkallo.midimapper;
+
+import kristofkallo.midimapper.parameter.Parameter;
+
+import javax.sound.midi.InvalidMidiDataException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/**
+ * Decouples the senders of parameter values from a slower output.
+ *
+ * Every parameter has a slot for its latest value. A value sent for a parameter
+ * that is still waiting in its slot replaces the waiting one, so intermediate values
+ * of e.g. a moving fader are dropped, but the final value is always delivered.
+ * Parameters with a waiting value are queued in the order they changed, and a
+ * dedicated sender thread forwards them to the output at most at the configured rate.
+ *
+ * The slots are indexed by the parameter index. When the map is replaced, a
+ * parameter of the new map can get the slot of a different parameter of the
+ * old one that is still waiting. That value is not replaced, but moved aside
+ * and forwarded before the waiting slots.
+ *
+ * Sending never blocks on the output, it only takes a short lock.
+ */
+public class CoalescingOutput implements ParameterOutput {
+    private final String name;
+    private final ParameterOutput output;
+    private final long minIntervalNanos;
+
+    private final Object lock = new Object();
+    // The slots, indexed by the parameter index. The parameter is null if the slot is empty.
+    private Parameter[] pendingParameters = new Parameter[0];
+    private int[] pendingValues = new int[0];
+    private long[] pendingTimeStamps = new long[0];
+    private long[] pendingArrivals = new long[0];
+    // Circular queue of the indices of the non-empty slots, each index is queued at most once
+    private int[] dirtyQueue = new int[0];
+    private int dirtyHead;
+    private int dirtySize;
+    // Values moved out of their slot by a parameter of a new map, in the order they were moved
+    private final ArrayDeque<DisplacedValue> displacedValues = new ArrayDeque<>();
+
+    private long receivedCount;
+    private long sentCount;
+    private long coalescedCount;
+
+    private volatile boolean running = true;
+    private final Thread senderThread;
+
+    /**
+     * @param name Name of the output for the sender thread and the statistics.
+     * @param output The output to forward to.
+     * @param maxRate The maximum number of values forwarded per second, or 0 for no limit.
+     */
+    public CoalescingOutput(String name, ParameterOutput output, double maxRate) {
+        this.name = name;
+        this.output = output;
+        this.minIntervalNanos = maxRate > 0 ? (long) (1e9 / maxRate) : 0;
+        senderThread = new Thread(this::runSender, "Coalescing sender " + name);
+        senderThread.setDaemon(true);
+        senderThread.start();
+    }
+
+    @Override
+    public void send(Parameter parameter, int value, long timeStamp, long arrivalNanos) {
+        int index = parameter.getIndex();
+        if (index < 0) {
+            throw new IllegalArgumentException("parameter is not indexed");
+        }
+        synchronized (lock) {
+            receivedCount++;
+            ensureCapacity(index + 1);
+            Parameter waiting = pendingParameters[index];
+            if (waiting == parameter) {
+                // Replace the waiting value
+                coalescedCount++;
+            } else if (waiting != null) {
+                // A different parameter of a previous map, its value must still be delivered
+                displacedValues.add(new DisplacedValue(waiting, pendingValues[index],
+                        pendingTimeStamps[index], pendingArrivals[index]));
+            } else {
+                dirtyQueue[(dirtyHead + dirtySize) % dirtyQueue.length] = index;
+                dirtySize++;
+                lock.notify();
+            }
+            pendingParameters[index] = parameter;
+            pendingValues[index] = value;
+            pendingTimeStamps[index] = timeStamp;
+            pendingArrivals[index] = arrivalNanos;
+        }
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= pendingParameters.length) {
+            return;
+        }
+        int newCapacity = Math.max(capacity, pendingParameters.length * 2);
+        pendingParameters = Arrays.copyOf(pendingParameters, newCapacity);
+        pendingValues = Arrays.copyOf(pendingValues, newCapacity);
+        pendingTimeStamps = Arrays.copyOf(pendingTimeStamps, newCapacity);
+        pendingArrivals = Arrays.copyOf(pendingArrivals, newCapacity);
+        // Unroll the circular queue into the new array
+        int[] newQueue = new int[newCapacity];
+        for (int i = 0; i < dirtySize; i++) {
+            newQueue[i] = dirtyQueue[(dirtyHead + i) % dirtyQueue.length];
+        }
+        dirtyQueue = newQueue;
+        dirtyHead = 0;
+    }
+
+    private void runSender() {
+        long nextSendTime = System.nanoTime();
+        while (running) {
+            Parameter parameter;
+            int value;
+            long timeStamp;
+            long arrivalNanos;
+            synchronized (lock) {
+                while (dirtySize == 0 && displacedValues.isEmpty() && running) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (!running) {
+                    return;
+                }
+                DisplacedValue displaced = displacedValues.poll();
+                if (displaced != null) {
+                    // It has been waiting longer than the slot that displaced it
+                    parameter = displaced.parameter;
+                    value = displaced.value;
+                    timeStamp = displaced.timeStamp;
+                    arrivalNanos = displaced.arrivalNanos;
+                } else {
+                    int index = dirtyQueue[dirtyHead];
+                    dirtyHead = (dirtyHead + 1) % dirtyQueue.length;
+                    dirtySize--;
+                    parameter = pendingParameters[index];
+                    value = pendingValues[index];
+                    timeStamp = pendingTimeStamps[index];
+                    arrivalNanos = pendingArrivals[index];
+                    pendingParameters[index] = null;
+                }
+                sentCount++;
+            }
+            try {
+                output.send(parameter, value, timeStamp, arrivalNanos);
+            } catch (InvalidMidiDataException e) {
+                e.printStackTrace();
+            }
+            if (minIntervalNanos > 0) {
+                nextSendTime += minIntervalNanos;
+                long now = System.nanoTime();
+                if (nextSendTime > now) {
+                    sleepNanos(nextSendTime - now);
+                } else {
+                    // Do not burst to catch up after an idle period
+                    nextSendTime = now;
+                }
+            }
+        }
+    }
+
+    private static void sleepNanos(long nanos) {
+        try {
+            Thread.sleep(nanos / 1000000, (int) (nanos % 1000000));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Stops the sender thread. Values still waiting are discarded.
+     */
+    public void close() {
+        running = false;
+        synchronized (lock) {
+            lock.notify();
+        }
+        senderThread.interrupt();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return The number of values sent to this output.
+     */
+    public long getReceivedCount() {
+        synchronized (lock) {
+            return receivedCount;
+        }
+    }
+
+    /**
+     * @return The number of values forwarded to the underlying output.
+     */
+    public long getSentCount() {
+        synchronized (lock) {
+            return sentCount;
+        }
+    }
+
+    /**
+     * @return The number of values that were replaced by a newer value before being forwarded.
+     */
+    public long getCoalescedCount() {
+        synchronized (lock) {
+            return coalescedCount;
+        }
+    }
+
+    /**
+     * @return The number of parameters whose value is waiting to be forwarded.
+     */
+    public int getQueueDepth() {
+        synchronized (lock) {
+            return dirtySize + displacedValues.size();
+        }
+    }
+
+    public String getStatistics() {
+        synchronized (lock) {
+            return String.format("%s: %d received, %d sent, %d coalesced, %d waiting",
+                    name, receivedCount, sentCount, coalescedCount, dirtySize + displacedValues.size());
+        }
+    }
+
+    private static class DisplacedValue {
+        final Parameter parameter;
+        final int value;
+        final long timeStamp;
+        final long arrivalNanos;
+
+        DisplacedValue(Parameter parameter, int value, long timeStamp, long arrivalNanos) {
+            this.parameter = parameter;
+            this.value = value;
+            this.timeStamp = timeStamp;
+            this.arrivalNanos = arrivalNanos;
+        }
+    }
+}
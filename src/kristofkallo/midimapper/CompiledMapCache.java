@@ -0,0 +1,386 @@
+package kristofkallo.midimapper;
+
+import kristofkallo.midimapper.parameter.Parameter;
+import kristofkallo.midimapper.parameter.ParameterFactory;
+import kristofkallo.midimapper.parameter.ParameterSpline;
+import org.apache.commons.math3.analysis.polynomials.PolynomialFunction;
+import org.apache.commons.math3.analysis.polynomials.PolynomialSplineFunction;
+import org.xml.sax.SAXException;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The compiled form of the map: a binary file with the channels, the parameter
+ * constants, the scale points, the spline coefficients and the lookup tables,
+ * so that nothing needs to be parsed, interpolated or tabulated on startup.
+ *
+ * Identical lookup tables, e.g. those of the same parameter of every channel,
+ * are only stored once, and the loaded parameters share them.
+ *
+ * The file starts with a magic number, a format version, and the SHA-256 hash
+ * of the map file it was compiled from. It is only used if all of them match,
+ * otherwise the map file is read again and the compiled form is rewritten.
+ * All numbers are big-endian.
+ */
+class CompiledMapCache {
+    private static final int MAGIC = 0x4d344d43; // "M4MC"
+    /**
+     * Must be incremented whenever the layout of the file or the meaning of
+     * the stored tables changes.
+     */
+    private static final int VERSION = 1;
+    private static final int HASH_LENGTH = 32;
+
+    private CompiledMapCache() {
+    }
+
+    /**
+     * @return The SHA-256 hash of the contents of the map file.
+     */
+    static byte[] hash(byte[] mapBytes) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(mapBytes);
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform is required to support SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Loads the channels from the compiled map file. The file is read into
+     * memory at once rather than mapped, as a mapped file cannot be replaced
+     * on Windows until the mapping is garbage collected, and it is rewritten
+     * when the map changes.
+     *
+     * @param hash The hash of the current map file, see {@link #hash(byte[])}.
+     * @return The channels, or null if the file does not exist, or it was
+     *         compiled from a different map file or by a different version.
+     * @throws IOException If the file cannot be read or it is corrupt.
+     */
+    static ArrayList<Channel> read(String pathname, byte[] hash) throws IOException {
+        ByteBuffer buffer;
+        try {
+            buffer = ByteBuffer.wrap(Files.readAllBytes(Paths.get(pathname)));
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        try {
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                return null;
+            }
+            byte[] storedHash = new byte[HASH_LENGTH];
+            buffer.get(storedHash);
+            if (!Arrays.equals(storedHash, hash)) {
+                return null;
+            }
+            return readChannels(buffer);
+        } catch (RuntimeException e) {
+            // Whatever a corrupt file makes the decoding or the parameters throw
+            throw new IOException("Corrupt compiled map", e);
+        }
+    }
+
+    private static ArrayList<Channel> readChannels(ByteBuffer buffer) throws IOException {
+        // Scales
+        int scaleCount = readLength(buffer, 2 * Integer.BYTES + 1);
+        ScalePoints[] scales = new ScalePoints[scaleCount];
+        PolynomialSplineFunction[] splines = new PolynomialSplineFunction[scaleCount];
+        for (int i = 0; i < scaleCount; i++) {
+            scales[i] = new ScalePoints(readDoubles(buffer), readDoubles(buffer));
+            if (buffer.get() != 0) {
+                double[] knots = readDoubles(buffer);
+                PolynomialFunction[] polynomials = new PolynomialFunction[readLength(buffer, Integer.BYTES)];
+                for (int j = 0; j < polynomials.length; j++) {
+                    polynomials[j] = new PolynomialFunction(readDoubles(buffer));
+                }
+                splines[i] = new PolynomialSplineFunction(knots, polynomials);
+            }
+        }
+
+        // Lookup tables
+        short[][] tables = new short[readLength(buffer, Integer.BYTES)][];
+        for (int i = 0; i < tables.length; i++) {
+            tables[i] = readShorts(buffer);
+        }
+
+        // Channels
+        int channelCount = readLength(buffer, 2 * Integer.BYTES + 3);
+        ArrayList<Channel> channels = new ArrayList<>(channelCount);
+        for (int i = 0; i < channelCount; i++) {
+            String id = readString(buffer);
+            String name = readString(buffer);
+            channels.add(new Channel(id, name, readAddress(buffer)));
+        }
+
+        // Parameters, the tables are already in the file
+        ParameterFactory parameterFactory = new ParameterFactory(false, 0);
+        int parameterCount = readLength(buffer, 1);
+        for (int i = 0; i < parameterCount; i++) {
+            Channel channel = channels.get(buffer.getInt());
+            String name = readString(buffer);
+            Address address = readAddress(buffer);
+            Scale scale = Scale.values()[buffer.get()];
+            int bytes = buffer.getInt();
+            boolean signed = buffer.get() != 0;
+            double min = buffer.getDouble();
+            double max = buffer.getDouble();
+            double dMin = buffer.getDouble();
+            double dMax = buffer.getDouble();
+            double exp = buffer.getDouble();
+            double thresh = buffer.getDouble();
+            double base = buffer.getDouble();
+            double coeff = buffer.getDouble();
+            int scaleIndex = buffer.getInt();
+            ScalePoints scalePoints = scaleIndex < 0 ? null : scales[scaleIndex];
+
+            Parameter parameter;
+            if (scale == Scale.SPLINE) {
+                // Reuse the stored coefficients instead of interpolating again
+                parameter = new ParameterSpline(name, address, bytes, signed, min, max, dMin, dMax,
+                        scaleIndex < 0 ? null : splines[scaleIndex]);
+            } else {
+                try {
+                    parameter = parameterFactory.createParameter(scale, name, address,
+                            bytes, signed, min, max, dMin, dMax, scalePoints, exp, thresh, base, coeff);
+                } catch (SAXException e) {
+                    throw new IOException("Corrupt compiled map", e);
+                }
+            }
+            int tableOffset = buffer.getInt();
+            int consoleToDAWTableIndex = buffer.getInt();
+            int dawToConsoleTableIndex = buffer.getInt();
+            parameter.setTables(consoleToDAWTableIndex < 0 ? null : tables[consoleToDAWTableIndex],
+                    tableOffset,
+                    dawToConsoleTableIndex < 0 ? null : tables[dawToConsoleTableIndex]);
+            channel.putParameter(parameter);
+        }
+        return channels;
+    }
+
+    /**
+     * Writes the compiled map file. It is written to a temporary file first,
+     * which then replaces the previous one, so a crash cannot leave a truncated file behind.
+     *
+     * @param hash The hash of the map file that the channels were read from.
+     * @param parameterSpecs The specs of every parameter of the channels, in map order.
+     */
+    static void write(String pathname, byte[] hash, List<Channel> channels, List<ParameterSpec> parameterSpecs) throws IOException {
+        // Number the scales and the channels
+        Map<ScalePoints, Integer> scaleIndices = new IdentityHashMap<>();
+        List<ScalePoints> scales = new ArrayList<>();
+        Map<ScalePoints, PolynomialSplineFunction> splines = new IdentityHashMap<>();
+        for (ParameterSpec spec : parameterSpecs) {
+            if (spec.scalePoints == null) {
+                continue;
+            }
+            if (!scaleIndices.containsKey(spec.scalePoints)) {
+                scaleIndices.put(spec.scalePoints, scales.size());
+                scales.add(spec.scalePoints);
+            }
+            if (spec.parameter instanceof ParameterSpline && !splines.containsKey(spec.scalePoints)) {
+                splines.put(spec.scalePoints, ((ParameterSpline) spec.parameter).getSplineFunction());
+            }
+        }
+        Map<TableKey, Integer> tableIndices = new HashMap<>();
+        List<short[]> tables = new ArrayList<>();
+        for (ParameterSpec spec : parameterSpecs) {
+            addTable(spec.parameter.getConsoleToDAWTable(), tableIndices, tables);
+            addTable(spec.parameter.getDAWToConsoleTable(), tableIndices, tables);
+        }
+        Map<Channel, Integer> channelIndices = new IdentityHashMap<>();
+        for (Channel channel : channels) {
+            channelIndices.put(channel, channelIndices.size());
+        }
+
+        Path path = Paths.get(pathname);
+        Path tmpPath = Paths.get(pathname + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpPath.toFile())))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.write(hash);
+
+            out.writeInt(scales.size());
+            for (ScalePoints scalePoints : scales) {
+                writeDoubles(out, scalePoints.x);
+                writeDoubles(out, scalePoints.y);
+                PolynomialSplineFunction spline = splines.get(scalePoints);
+                out.writeBoolean(spline != null);
+                if (spline != null) {
+                    writeDoubles(out, spline.getKnots());
+                    PolynomialFunction[] polynomials = spline.getPolynomials();
+                    out.writeInt(polynomials.length);
+                    for (PolynomialFunction polynomial : polynomials) {
+                        writeDoubles(out, polynomial.getCoefficients());
+                    }
+                }
+            }
+
+            out.writeInt(tables.size());
+            for (short[] table : tables) {
+                writeShorts(out, table);
+            }
+
+            out.writeInt(channels.size());
+            for (Channel channel : channels) {
+                writeString(out, channel.getId());
+                writeString(out, channel.getName());
+                writeAddress(out, channel.getAddress());
+            }
+
+            out.writeInt(parameterSpecs.size());
+            for (ParameterSpec spec : parameterSpecs) {
+                Parameter parameter = spec.parameter;
+                out.writeInt(channelIndices.get(spec.channel));
+                writeString(out, spec.name);
+                writeAddress(out, spec.address);
+                out.writeByte(spec.scale.ordinal());
+                out.writeInt(spec.bytes);
+                out.writeBoolean(spec.signed);
+                out.writeDouble(spec.min);
+                out.writeDouble(spec.max);
+                out.writeDouble(spec.dMin);
+                out.writeDouble(spec.dMax);
+                out.writeDouble(spec.exp);
+                out.writeDouble(spec.thresh);
+                out.writeDouble(spec.base);
+                out.writeDouble(spec.coeff);
+                out.writeInt(spec.scalePoints == null ? -1 : scaleIndices.get(spec.scalePoints));
+                out.writeInt(parameter.getTableOffset());
+                out.writeInt(getTableIndex(parameter.getConsoleToDAWTable(), tableIndices));
+                out.writeInt(getTableIndex(parameter.getDAWToConsoleTable(), tableIndices));
+            }
+        }
+        try {
+            Files.move(tmpPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tmpPath, path, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static void addTable(short[] table, Map<TableKey, Integer> tableIndices, List<short[]> tables) {
+        if (table == null) {
+            return;
+        }
+        TableKey key = new TableKey(table);
+        if (!tableIndices.containsKey(key)) {
+            tableIndices.put(key, tables.size());
+            tables.add(table);
+        }
+    }
+
+    private static int getTableIndex(short[] table, Map<TableKey, Integer> tableIndices) {
+        return table == null ? -1 : tableIndices.get(new TableKey(table));
+    }
+
+    /**
+     * Compares lookup tables by content.
+     */
+    private static class TableKey {
+        private final short[] table;
+        private final int hashCode;
+
+        TableKey(short[] table) {
+            this.table = table;
+            this.hashCode = Arrays.hashCode(table);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof TableKey && Arrays.equals(table, ((TableKey) o).table);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+
+    private static Address readAddress(ByteBuffer buffer) {
+        byte sysex0 = buffer.get();
+        byte sysex1 = buffer.get();
+        byte nrpn = buffer.get();
+        return new Address(sysex0, sysex1, nrpn);
+    }
+
+    private static void writeAddress(DataOutputStream out, Address address) throws IOException {
+        out.writeByte(address.getSysex0());
+        out.writeByte(address.getSysex1());
+        out.writeByte(address.getNrpn());
+    }
+
+    /**
+     * Reads the number of elements of an array, and checks that the rest of
+     * the file can hold that many, so that a corrupt length cannot make it
+     * allocate more than the size of the file.
+     *
+     * @param elementBytes The least number of bytes an element takes in the file.
+     */
+    private static int readLength(ByteBuffer buffer, int elementBytes) throws IOException {
+        int length = buffer.getInt();
+        if (length < 0 || length > buffer.remaining() / elementBytes) {
+            throw new IOException("Corrupt compiled map: length " + length + " at " + (buffer.position() - Integer.BYTES)
+                    + " with " + buffer.remaining() + " bytes left");
+        }
+        return length;
+    }
+
+    private static String readString(ByteBuffer buffer) throws IOException {
+        byte[] bytes = new byte[readLength(buffer, 1)];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeString(DataOutputStream out, String string) throws IOException {
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static double[] readDoubles(ByteBuffer buffer) throws IOException {
+        double[] doubles = new double[readLength(buffer, Double.BYTES)];
+        buffer.asDoubleBuffer().get(doubles);
+        buffer.position(buffer.position() + doubles.length * Double.BYTES);
+        return doubles;
+    }
+
+    private static void writeDoubles(DataOutputStream out, double[] doubles) throws IOException {
+        out.writeInt(doubles.length);
+        for (double d : doubles) {
+            out.writeDouble(d);
+        }
+    }
+
+    private static short[] readShorts(ByteBuffer buffer) throws IOException {
+        int length = readLength(buffer, Short.BYTES);
+        short[] shorts = new short[length];
+        buffer.asShortBuffer().get(shorts);
+        buffer.position(buffer.position() + length * Short.BYTES);
+        return shorts;
+    }
+
+    private static void writeShorts(DataOutputStream out, short[] shorts) throws IOException {
+        out.writeInt(shorts.length);
+        for (short s : shorts) {
+            out.writeShort(s);
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package kristofkallo.midimapper;
+
+/**
+ * Prints the messages of the application, the errors and warnings to
+ * the standard error, the rest to the standard output.
+ */
+public class ConsoleNotifier implements Notifier {
+    @Override
+    public void displayMessage(String message, MessageType type) {
+        if (type == MessageType.INFO) {
+            System.out.println(message);
+        } else {
+            System.err.println(type + ": " + message);
+        }
+    }
+
+    @Override
+    public void destroy() {
+    }
+}
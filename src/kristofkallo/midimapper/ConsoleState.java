@@ -0,0 +1,221 @@
+package kristofkallo.midimapper;
+
+import kristofkallo.midimapper.parameter.Parameter;
+
+import javax.sound.midi.InvalidMidiDataException;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The last known console value of every parameter of the map, as seen in
+ * either direction. It can be pushed to the console or to the DAW to bring
+ * them in sync, and saved to and loaded from a snapshot file.
+ *
+ * The values are kept in an array indexed by the dense parameter index.
+ * Each value is written by a single int store, so readers may see a slightly
+ * stale value, but never a torn one.
+ */
+public class ConsoleState {
+    /**
+     * Marks the values that have not been seen yet.
+     */
+    public static final int UNKNOWN = Integer.MIN_VALUE;
+
+    private static final int SNAPSHOT_MAGIC = 0x4d345353; // "M4SS"
+    private static final int SNAPSHOT_VERSION = 1;
+
+    /**
+     * The map and the values, replaced together when the map is replaced.
+     */
+    private volatile Values values = new Values(null, new int[0]);
+
+    private static final class Values {
+        final MidiMap midiMap;
+        final int[] values;
+
+        Values(MidiMap midiMap, int[] values) {
+            this.midiMap = midiMap;
+            this.values = values;
+        }
+
+        Parameter getParameter(int index) {
+            return midiMap.getParameter(index);
+        }
+    }
+
+    /**
+     * Sets the map whose parameters are tracked. The known values of the
+     * parameters that are in the previous map too, at the same addresses, are kept.
+     */
+    public synchronized void setMidiMap(MidiMap midiMap) {
+        Values oldValues = values;
+        int[] newValues = new int[midiMap.getParameterCount()];
+        Arrays.fill(newValues, UNKNOWN);
+        if (oldValues.midiMap != null) {
+            for (int i = 0; i < oldValues.values.length; i++) {
+                if (oldValues.values[i] == UNKNOWN) {
+                    continue;
+                }
+                Parameter newParameter = findParameter(midiMap, oldValues.getParameter(i));
+                if (newParameter != null) {
+                    newValues[newParameter.getIndex()] = oldValues.values[i];
+                }
+            }
+        }
+        values = new Values(midiMap, newValues);
+    }
+
+    private static Parameter findParameter(MidiMap midiMap, Parameter parameter) {
+        Address channelAddress = parameter.getChannel().getAddress();
+        Channel channel = midiMap.getChannelByAddress(channelAddress.getSysex0(), channelAddress.getSysex1());
+        if (channel == null) {
+            return null;
+        }
+        return channel.getParameterByAddress(parameter.getAddress().getSysex0(), parameter.getAddress().getSysex1());
+    }
+
+    /**
+     * Records the console value of a parameter.
+     * Values of parameters that are not in the current map are ignored.
+     */
+    public void set(Parameter parameter, int value) {
+        Values current = values;
+        int index = parameter.getIndex();
+        if (index < 0 || index >= current.values.length || current.getParameter(index) != parameter) {
+            // A parameter of a replaced map
+            return;
+        }
+        current.values[index] = value;
+    }
+
+    /**
+     * @return The last known console value of the parameter, or {@link #UNKNOWN}.
+     */
+    public int get(Parameter parameter) {
+        Values current = values;
+        int index = parameter.getIndex();
+        if (index < 0 || index >= current.values.length || current.getParameter(index) != parameter) {
+            return UNKNOWN;
+        }
+        return current.values[index];
+    }
+
+    public int getKnownCount() {
+        int count = 0;
+        for (int value : values.values) {
+            if (value != UNKNOWN) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Sends every known value to an output, at most maxRate values per second.
+     * It blocks until all of them have been sent.
+     *
+     * @param output The output towards the console or the DAW.
+     * @param toDAW Whether the output expects DAW values, otherwise console values are sent.
+     * @param maxRate The maximum number of values sent per second, 0 for no limit.
+     * @return The number of values sent.
+     */
+    public int push(ParameterOutput output, boolean toDAW, double maxRate) throws InvalidMidiDataException {
+        Values current = values;
+        long interval = maxRate > 0 ? (long) (TimeUnit.SECONDS.toNanos(1) / maxRate) : 0;
+        long next = System.nanoTime();
+        int sent = 0;
+        for (int i = 0; i < current.values.length; i++) {
+            int value = current.values[i];
+            if (value == UNKNOWN) {
+                continue;
+            }
+            if (interval > 0) {
+                long wait = next - System.nanoTime();
+                if (wait > 0) {
+                    LockSupport.parkNanos(wait);
+                }
+                next += interval;
+            }
+            Parameter parameter = current.getParameter(i);
+            output.send(parameter, toDAW ? parameter.mapConsoleToDAW(value) : value, -1, System.nanoTime());
+            sent++;
+        }
+        return sent;
+    }
+
+    /**
+     * Writes the known values to a snapshot file, keyed by their SysEx addresses,
+     * so that the file can be loaded even after the map has changed.
+     *
+     * @return The number of values written.
+     */
+    public int save(String pathname) throws IOException {
+        Values current = values;
+        int count = 0;
+        for (int value : current.values) {
+            if (value != UNKNOWN) {
+                count++;
+            }
+        }
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(pathname)))) {
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(SNAPSHOT_VERSION);
+            out.writeInt(count);
+            for (int i = 0; i < current.values.length; i++) {
+                if (current.values[i] == UNKNOWN) {
+                    continue;
+                }
+                Parameter parameter = current.getParameter(i);
+                Address channelAddress = parameter.getChannel().getAddress();
+                out.writeByte(channelAddress.getSysex0());
+                out.writeByte(channelAddress.getSysex1());
+                out.writeByte(parameter.getAddress().getSysex0());
+                out.writeByte(parameter.getAddress().getSysex1());
+                out.writeInt(current.values[i]);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Reads a snapshot file written by {@link #save(String)}. Its values replace
+     * the known ones, values of addresses that are not in the map are skipped.
+     *
+     * @return The number of values loaded.
+     */
+    public int load(String pathname) throws IOException {
+        Values current = values;
+        if (current.midiMap == null) {
+            throw new IOException("No map is loaded");
+        }
+        int loaded = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(pathname)))) {
+            if (in.readInt() != SNAPSHOT_MAGIC || in.readInt() != SNAPSHOT_VERSION) {
+                throw new IOException(pathname + " is not a snapshot file");
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                byte channel0 = in.readByte();
+                byte channel1 = in.readByte();
+                byte parameter0 = in.readByte();
+                byte parameter1 = in.readByte();
+                int value = in.readInt();
+                Channel channel = current.midiMap.getChannelByAddress(channel0, channel1);
+                Parameter parameter = channel == null ? null : channel.getParameterByAddress(parameter0, parameter1);
+                if (parameter != null) {
+                    current.values[parameter.getIndex()] = value;
+                    loaded++;
+                }
+            }
+        }
+        return loaded;
+    }
+}
@@ -0,0 +1,214 @@
+package kristofkallo.midimapper;
+
+import kristofkallo.midimapper.parameter.Parameter;
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.Receiver;
+import javax.sound.midi.SysexMessage;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Acquires the state of the console by requesting the data of every channel
+ * with Data Request (RQ1) messages, instead of waiting for the console to send it.
+ *
+ * It sits in front of the receiver of the console's messages, and passes every
+ * message on, so the replies, which carry many consecutive parameters each, are
+ * decoded and forwarded like any other Data Set message. While a sync is in
+ * progress, it also watches the replies to tell when a request is done.
+ * At most a window of requests is outstanding at a time. A request is done when
+ * the reply reaching the end of its block arrives, or when it times out.
+ */
+public class ConsoleSync implements Receiver {
+    private final Receiver receiver;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition requestDone = lock.newCondition();
+    // The outstanding requests, guarded by the lock
+    private final List<Request> outstanding = new ArrayList<>();
+    private volatile boolean syncing;
+    private int receivedBytes;
+
+    /**
+     * A Data Request for a block of consecutive addresses.
+     * The addresses are the four 7-bit address bytes packed into 28 bits.
+     */
+    private static final class Request {
+        final int start;
+        final int end;
+        long deadline;
+
+        Request(int start, int end) {
+            this.start = start;
+            this.end = end;
+        }
+    }
+
+    /**
+     * @param receiver The receiver of the console's messages, which gets every message.
+     */
+    public ConsoleSync(Receiver receiver) {
+        this.receiver = receiver;
+    }
+
+    /**
+     * Requests the data of every channel of the map from the console, and waits
+     * until all of it has arrived or the requests have timed out.
+     * Only one sync can run at a time.
+     *
+     * @param midiMap The map whose channels are requested.
+     * @param console The receiver of the console's MIDI input.
+     * @param window The maximum number of outstanding requests.
+     * @param timeoutMillis How long to wait for the reply to a request.
+     * @return Human-readable summary of the sync.
+     */
+    public synchronized String sync(MidiMap midiMap, Receiver console, int window, long timeoutMillis) throws InvalidMidiDataException, InterruptedException {
+        List<Request> requests = createRequests(midiMap);
+        long timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        int timedOut = 0;
+        long start = System.nanoTime();
+        lock.lock();
+        try {
+            receivedBytes = 0;
+            syncing = true;
+            for (Request request : requests) {
+                while (outstanding.size() >= Math.max(window, 1)) {
+                    timedOut += awaitRequests();
+                }
+                request.deadline = System.nanoTime() + timeoutNanos;
+                outstanding.add(request);
+                SysexMessage message = new SysexMessage();
+                byte[] data = createRequestMessage(request);
+                message.setMessage(data, data.length);
+                console.send(message, -1);
+            }
+            while (!outstanding.isEmpty()) {
+                timedOut += awaitRequests();
+            }
+        } finally {
+            outstanding.clear();
+            syncing = false;
+            lock.unlock();
+        }
+        return String.format("Console sync: %d blocks requested, %d timed out, %d bytes received in %.0f ms",
+                requests.size(), timedOut, receivedBytes, (System.nanoTime() - start) / 1e6);
+    }
+
+    /**
+     * Waits until a request is done or the earliest deadline passes, and drops the timed out requests.
+     * Must be called with the lock held.
+     *
+     * @return The number of timed out requests.
+     */
+    private int awaitRequests() throws InterruptedException {
+        long earliest = Long.MAX_VALUE;
+        for (Request request : outstanding) {
+            earliest = Math.min(earliest, request.deadline);
+        }
+        long wait = earliest - System.nanoTime();
+        if (wait > 0) {
+            requestDone.awaitNanos(wait);
+        }
+        int timedOut = 0;
+        long now = System.nanoTime();
+        for (Iterator<Request> iterator = outstanding.iterator(); iterator.hasNext(); ) {
+            if (now - iterator.next().deadline >= 0) {
+                iterator.remove();
+                timedOut++;
+            }
+        }
+        return timedOut;
+    }
+
+    /**
+     * One request per channel, spanning from its lowest to its highest parameter address.
+     */
+    private static List<Request> createRequests(MidiMap midiMap) {
+        List<Request> requests = new ArrayList<>();
+        for (Channel channel : midiMap.getChannels()) {
+            int channelKey = channel.getAddress().getSysexKey();
+            if (channelKey < 0) {
+                continue;
+            }
+            int low = Integer.MAX_VALUE;
+            int high = Integer.MIN_VALUE;
+            for (Parameter parameter : channel.getParameters()) {
+                int key = parameter.getAddress().getSysexKey();
+                if (key < 0) {
+                    continue;
+                }
+                low = Math.min(low, key);
+                high = Math.max(high, key + parameter.getLengthInBytes());
+            }
+            if (low < high) {
+                requests.add(new Request(channelKey << 14 | low, channelKey << 14 | high));
+            }
+        }
+        return requests;
+    }
+
+    private static byte[] createRequestMessage(Request request) {
+        return createRequestMessage(request.start, request.end - request.start);
+    }
+
+    /**
+     * @param start The first address, the four 7-bit address bytes packed into 28 bits.
+     * @param size The number of bytes requested.
+     * @return A Data Request message for a block of consecutive addresses.
+     */
+    static byte[] createRequestMessage(int start, int size) {
+        byte[] data = new byte[M400ByteCode.REQUEST_LENGTH];
+        M400ByteCode.putHeader(data, M400ByteCode.DATA_REQUEST_COMMAND_ID);
+        M400ByteCode.putAddress(data, M400ByteCode.ADDRESS_OFFSET, start);
+        M400ByteCode.putAddress(data, M400ByteCode.DATA_OFFSET, size);
+        M400ByteCode.putChecksum(data, M400ByteCode.REQUEST_LENGTH - 2);
+        data[M400ByteCode.REQUEST_LENGTH - 1] = M400ByteCode.EOX.getCode();
+        return data;
+    }
+
+    @Override
+    public void send(MidiMessage message, long timeStamp) {
+        if (syncing) {
+            readReply(MidiMessageAccess.bufferOf(message), message.getLength());
+        }
+        receiver.send(message, timeStamp);
+    }
+
+    /**
+     * Marks the request done whose block the Data Set message completes.
+     */
+    private void readReply(byte[] msg, int length) {
+        if (!DataSetDecoder.isDataSet(msg, length)) {
+            return;
+        }
+        int start = DataSetDecoder.getStartAddress(msg);
+        if (start < 0) {
+            return;
+        }
+        int dataLength = DataSetDecoder.getDataLength(length);
+        int end = start + dataLength;
+        lock.lock();
+        try {
+            receivedBytes += dataLength;
+            for (Iterator<Request> iterator = outstanding.iterator(); iterator.hasNext(); ) {
+                Request request = iterator.next();
+                if (start >= request.start && start < request.end && end >= request.end) {
+                    iterator.remove();
+                    requestDone.signalAll();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void close() {
+        receiver.close();
+    }
+}
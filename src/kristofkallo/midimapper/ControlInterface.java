@@ -0,0 +1,143 @@
+package kristofkallo.midimapper;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Text commands for controlling the application without the tray, one per line,
+ * from the standard input or from a socket on the loopback interface.
+ * The reply to a command is written back, the messages of the actions that run
+ * in the background are displayed by the {@link Notifier}.
+ */
+public class ControlInterface {
+    static final String HELP = "Commands: reconnect, reload, sync, resync daw, resync console, " +
+            "save snapshot, load snapshot, stats, latency, startup, help, quit";
+
+    private final App app;
+
+    public ControlInterface(App app) {
+        this.app = app;
+    }
+
+    /**
+     * Executes a command.
+     *
+     * @return The reply, empty if there is nothing to say.
+     */
+    public String execute(String line) {
+        String command = line.trim().toLowerCase().replaceAll("\\s+", " ");
+        switch (command) {
+            case "":
+                return "";
+            case "reconnect":
+                app.connectDevices();
+                return "";
+            case "reload":
+                app.reloadMap();
+                return "";
+            case "sync":
+                app.syncFromConsole();
+                return "";
+            case "resync daw":
+                app.resyncDAW();
+                return "";
+            case "resync console":
+                app.resyncConsole();
+                return "";
+            case "save snapshot":
+                app.saveSnapshot();
+                return "";
+            case "load snapshot":
+                app.loadSnapshot();
+                return "";
+            case "stats":
+                return app.getStatistics();
+            case "latency":
+                app.dumpLatency();
+                return "";
+            case "startup":
+                return app.getStartupReport();
+            case "quit":
+                app.quit();
+                return "";
+            case "help":
+                return HELP;
+            default:
+                return "Unknown command: " + line.trim() + "\n" + HELP;
+        }
+    }
+
+    /**
+     * Executes the commands of the standard input. When it is closed, e.g. when
+     * running as a service, it keeps waiting until the application quits.
+     */
+    public void runStandardInput() throws InterruptedException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String reply = execute(line);
+                if (!reply.isEmpty()) {
+                    System.out.println(reply);
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        synchronized (this) {
+            while (true) {
+                wait();
+            }
+        }
+    }
+
+    /**
+     * Starts accepting connections on a daemon thread. Each connection is served
+     * on its own thread, and is closed after the quit command or by the client.
+     *
+     * @param port The port on the loopback interface.
+     */
+    public void startSocket(int port) throws IOException {
+        ServerSocket serverSocket = new ServerSocket(port, 4, InetAddress.getLoopbackAddress());
+        Thread acceptor = new Thread(() -> {
+            while (true) {
+                try {
+                    Socket socket = serverSocket.accept();
+                    Thread connection = new Thread(() -> serve(socket), "Control connection " + socket.getPort());
+                    connection.setDaemon(true);
+                    connection.start();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    return;
+                }
+            }
+        }, "Control socket " + port);
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    private void serve(Socket socket) {
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+             PrintWriter writer = new PrintWriter(socket.getOutputStream(), true)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String reply = execute(line);
+                writer.println(reply.isEmpty() ? "OK" : reply);
+            }
+        } catch (IOException e) {
+            System.err.println("Control connection closed: " + e.getLocalizedMessage());
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package kristofkallo.midimapper;
+
+import kristofkallo.midimapper.parameter.Parameter;
+
+import javax.sound.midi.InvalidMidiDataException;
+
+import static kristofkallo.midimapper.MidiDataTransform.fromByteArraySigned;
+
+/**
+ * Decodes the Data Set (DT1) messages of the console.
+ *
+ * A message has a 4-byte start address and a payload that spans consecutive
+ * addresses, followed by the checksum and EOX. A single parameter change
+ * carries one parameter, but e.g. a scene recall or a reply to a Data Request
+ * carries many of them in one message.
+ */
+final class DataSetDecoder {
+    /**
+     * Header, address, at least one data byte, checksum and EOX.
+     */
+    static final int MIN_LENGTH = M400ByteCode.DATA_OFFSET + 3;
+
+    interface ValueHandler {
+        /**
+         * @param parameter A mapped parameter of the message.
+         * @param value Its value as sent by the console.
+         */
+        void handle(Parameter parameter, int value) throws InvalidMidiDataException;
+    }
+
+    private DataSetDecoder() {
+    }
+
+    /**
+     * @return Whether the message is a Data Set message of the console.
+     */
+    static boolean isDataSet(byte[] msg, int length) {
+        return length >= MIN_LENGTH &&
+                M400ByteCode.SYS_EX_STATUS_BYTE.is(msg[0]) &&
+                M400ByteCode.MANUFACTURER_ID.is(msg[1]) &&
+                M400ByteCode.DEVICE_ID.is(msg[2]) &&
+                M400ByteCode.MODEL_ID_0.is(msg[3]) &&
+                M400ByteCode.MODEL_ID_1.is(msg[4]) &&
+                M400ByteCode.MODEL_ID_2.is(msg[5]) &&
+                M400ByteCode.DATA_SET_COMMAND_ID.is(msg[6]);
+    }
+
+    /**
+     * @return The four 7-bit address bytes packed into 28 bits, or -1 if any of them is invalid.
+     */
+    static int getStartAddress(byte[] msg) {
+        int address = 0;
+        for (int i = M400ByteCode.ADDRESS_OFFSET; i < M400ByteCode.DATA_OFFSET; i++) {
+            if (msg[i] < 0) {
+                return -1;
+            }
+            address = address << 7 | msg[i];
+        }
+        return address;
+    }
+
+    /**
+     * @return The number of data bytes between the address and the checksum.
+     */
+    static int getDataLength(int length) {
+        return length - 2 - M400ByteCode.DATA_OFFSET;
+    }
+
+    /**
+     * The Roland checksum makes the sum of the address, the data and the checksum
+     * bytes a multiple of 128.
+     */
+    static boolean isChecksumValid(byte[] msg, int length) {
+        int sum = 0;
+        for (int i = M400ByteCode.ADDRESS_OFFSET; i < length - 1; i++) {
+            sum += msg[i];
+        }
+        return (sum & 127) == 0;
+    }
+
+    /**
+     * Decodes the value of a parameter sent by the console.
+     * Every value is decoded as signed, whatever the signed attribute of the
+     * parameter, as the program always did. How the console sends unsigned
+     * values with the top bit set, e.g. pan right of center, has not been
+     * captured from the hardware yet.
+     *
+     * @param offset The index of the first byte of the value.
+     */
+    static int decodeValue(byte[] msg, int offset, Parameter parameter) {
+        return fromByteArraySigned(msg, offset, parameter.getLengthInBytes());
+    }
+
+    /**
+     * Walks the payload in a single pass, and hands each mapped parameter to the handler.
+     * Bytes at unmapped addresses are skipped, and so is a parameter that does not
+     * fit into the payload completely.
+     * The message must be a Data Set message with a valid address.
+     *
+     * @return The number of parameters handled.
+     */
+    static int walk(byte[] msg, int length, MidiMap midiMap, ValueHandler handler) throws InvalidMidiDataException {
+        int start = getStartAddress(msg);
+        int dataEnd = length - 2;
+        int count = 0;
+        Channel channel = null;
+        int channelKey = -1;
+        int offset = M400ByteCode.DATA_OFFSET;
+        while (offset < dataEnd) {
+            int address = start + offset - M400ByteCode.DATA_OFFSET;
+            // The channel only changes if the payload crosses a channel block
+            if (address >>> 14 != channelKey) {
+                channelKey = address >>> 14;
+                channel = midiMap.getChannelByAddress((byte) (channelKey >> 7), (byte) (channelKey & 127));
+            }
+            Parameter parameter = channel == null ? null :
+                    channel.getParameterByAddress((byte) (address >> 7 & 127), (byte) (address & 127));
+            if (parameter == null) {
+                offset++;
+                continue;
+            }
+            int parameterLength = parameter.getLengthInBytes();
+            if (offset + parameterLength > dataEnd) {
+                break;
+            }
+            handler.handle(parameter, decodeValue(msg, offset, parameter));
+            count++;
+            offset += parameterLength;
+        }
+        return count;
+    }
+}
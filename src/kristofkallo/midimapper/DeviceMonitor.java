@@ -0,0 +1,156 @@
+package kristofkallo.midimapper;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Notices when the console or the loopMIDI ports disappear or come back, and
+ * has the side that disappeared reconnected, while the other keeps working.
+ *
+ * Polling the open ports disturbs the messaging, so it only looks at the list
+ * of the devices of the system, at a slow interval on a daemon thread, and does
+ * nothing unless the list has changed. When a side has disappeared, it is
+ * disconnected, and when it is back, it is reconnected. A reconnect that fails
+ * is retried on the next few checks, as a device may not open right after it
+ * appeared. The outages and the time the reconnects took are logged.
+ */
+public class DeviceMonitor {
+    public enum Side {
+        CONSOLE("M-400"), DAW("loopMIDI");
+
+        private final String deviceName;
+
+        Side(String deviceName) {
+            this.deviceName = deviceName;
+        }
+
+        public String getDeviceName() {
+            return deviceName;
+        }
+    }
+
+    /**
+     * The connections that the monitor manages.
+     */
+    public interface Listener {
+        boolean isConnected(Side side);
+
+        /**
+         * Closes the ports of the side, which have disappeared.
+         */
+        void disconnect(Side side);
+
+        /**
+         * Opens the ports of the side again.
+         *
+         * @return Whether it succeeded.
+         */
+        boolean reconnect(Side side);
+    }
+
+    private final DeviceProvider deviceProvider;
+    private final Listener listener;
+    private final int retries;
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "Device monitor");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Accessed on the monitor thread only
+    private List<String> previousNames = Collections.emptyList();
+    private final Map<Side, Long> lostNanos = new EnumMap<>(Side.class);
+    private final Map<Side, Integer> attemptsLeft = new EnumMap<>(Side.class);
+
+    // Guarded by this
+    private int outageCount;
+    private double lastOutageSeconds;
+    private double lastReconnectMillis;
+    private int failedReconnects;
+
+    /**
+     * @param deviceProvider Lists the devices, and tells whether a side is among them.
+     * @param listener Disconnects and reconnects the sides.
+     * @param intervalMillis The time between two checks.
+     * @param retries How many times a failed reconnect is tried again without the list changing.
+     */
+    public DeviceMonitor(DeviceProvider deviceProvider, Listener listener, long intervalMillis, int retries) {
+        this.deviceProvider = deviceProvider;
+        this.listener = listener;
+        this.retries = retries;
+        long now = System.nanoTime();
+        for (Side side : Side.values()) {
+            // A side that is not connected at the start is out since then
+            lostNanos.put(side, now);
+            attemptsLeft.put(side, 0);
+        }
+        executor.scheduleWithFixedDelay(this::check, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void check() {
+        try {
+            List<String> names = deviceProvider.getDeviceNames();
+            boolean changed = !names.equals(previousNames);
+            previousNames = names;
+            for (Side side : Side.values()) {
+                boolean present = side == Side.CONSOLE ?
+                        deviceProvider.isConsolePresent(names) : deviceProvider.isDAWPresent(names);
+                boolean connected = listener.isConnected(side);
+                if (!present && connected) {
+                    lostNanos.put(side, System.nanoTime());
+                    System.out.println(side.getDeviceName() + " disappeared, disconnecting it");
+                    listener.disconnect(side);
+                } else if (present && !connected) {
+                    if (changed) {
+                        attemptsLeft.put(side, retries + 1);
+                    }
+                    if (attemptsLeft.get(side) > 0) {
+                        attemptsLeft.put(side, attemptsLeft.get(side) - 1);
+                        reconnect(side);
+                    }
+                }
+            }
+        } catch (RuntimeException e) {
+            // The executor would not run it again
+            e.printStackTrace();
+        }
+    }
+
+    private void reconnect(Side side) {
+        long start = System.nanoTime();
+        boolean connected = listener.reconnect(side);
+        long end = System.nanoTime();
+        double reconnectMillis = (end - start) / 1e6;
+        if (!connected) {
+            synchronized (this) {
+                failedReconnects++;
+            }
+            System.out.printf("%s could not be reconnected in %.1f ms, %d attempts left%n",
+                    side.getDeviceName(), reconnectMillis, attemptsLeft.get(side));
+            return;
+        }
+        attemptsLeft.put(side, 0);
+        double outageSeconds = (end - lostNanos.get(side)) / 1e9;
+        synchronized (this) {
+            outageCount++;
+            lastOutageSeconds = outageSeconds;
+            lastReconnectMillis = reconnectMillis;
+        }
+        System.out.printf("%s reconnected in %.1f ms after an outage of %.1f s%n",
+                side.getDeviceName(), reconnectMillis, outageSeconds);
+    }
+
+    public synchronized String getStatistics() {
+        return String.format("Device monitor: %d reconnects, last after %.1f s out in %.1f ms, %d failed",
+                outageCount, lastOutageSeconds, lastReconnectMillis, failedReconnects);
+    }
+
+    public void close() {
+        executor.shutdownNow();
+    }
+}
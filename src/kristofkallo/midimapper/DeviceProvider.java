@@ -0,0 +1,40 @@
+package kristofkallo.midimapper;
+
+import javax.sound.midi.MidiUnavailableException;
+import java.util.List;
+
+/**
+ * Opens the ports of the console and of the DAW, which are either real MIDI
+ * devices or stand-ins, see {@link SystemDeviceProvider} and {@link SimulatedDeviceProvider}.
+ */
+public interface DeviceProvider {
+    /**
+     * @return The open ports of the console.
+     * @throws MidiUnavailableException If they are not available, with a message for the user.
+     */
+    PortPair openConsole() throws MidiUnavailableException;
+
+    /**
+     * @return The open ports towards and from the DAW.
+     * @throws MidiUnavailableException If they are not available, with a message for the user.
+     */
+    PortPair openDAW() throws MidiUnavailableException;
+
+    /**
+     * @return The names of the devices present now. It must not open or touch
+     *         any device, as it is called periodically while the ports are in use.
+     */
+    List<String> getDeviceNames();
+
+    /**
+     * @param deviceNames The names returned by {@link #getDeviceNames()}.
+     * @return Whether the ports of the console are among them.
+     */
+    boolean isConsolePresent(List<String> deviceNames);
+
+    /**
+     * @param deviceNames The names returned by {@link #getDeviceNames()}.
+     * @return Whether the ports towards and from the DAW are among them.
+     */
+    boolean isDAWPresent(List<String> deviceNames);
+}
@@ -0,0 +1,94 @@
+package kristofkallo.midimapper;
+
+import kristofkallo.midimapper.parameter.Parameter;
+
+import javax.sound.midi.InvalidMidiDataException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Remembers the last value sent to a device for each parameter, so that the
+ * device echoing it back can be recognized and dropped instead of being
+ * forwarded to the other side, which would double the traffic and may
+ * oscillate if the mapping rounds differently in each direction.
+ *
+ * It is put in front of an output, and the receiver of the same device asks
+ * it with {@link #isEcho(Parameter, int)} before forwarding a value.
+ */
+public class EchoSuppressor implements ParameterOutput {
+    private final String name;
+    private final ParameterOutput output;
+    private final long windowNanos;
+    private final int tolerance;
+
+    // Indexed by the parameter index, grown as needed
+    private Parameter[] sentParameters = new Parameter[0];
+    private int[] sentValues = new int[0];
+    private long[] sentTimes = new long[0];
+
+    private long checkedCount;
+    private long suppressedCount;
+
+    /**
+     * @param name Name of the device, used in the statistics.
+     * @param output The output towards the device.
+     * @param windowMillis How long after sending a value its echo is expected.
+     * @param tolerance How far the echoed value may be from the sent one,
+     *                  in the units of the device.
+     */
+    public EchoSuppressor(String name, ParameterOutput output, long windowMillis, int tolerance) {
+        this.name = name;
+        this.output = output;
+        this.windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+        this.tolerance = tolerance;
+    }
+
+    @Override
+    public void send(Parameter parameter, int value, long timeStamp, long arrivalNanos) throws InvalidMidiDataException {
+        record(parameter, value);
+        output.send(parameter, value, timeStamp, arrivalNanos);
+    }
+
+    private synchronized void record(Parameter parameter, int value) {
+        int index = parameter.getIndex();
+        if (index < 0) {
+            return;
+        }
+        if (index >= sentParameters.length) {
+            int newCapacity = Math.max(index + 1, sentParameters.length * 2);
+            sentParameters = Arrays.copyOf(sentParameters, newCapacity);
+            sentValues = Arrays.copyOf(sentValues, newCapacity);
+            sentTimes = Arrays.copyOf(sentTimes, newCapacity);
+        }
+        sentParameters[index] = parameter;
+        sentValues[index] = value;
+        sentTimes[index] = System.nanoTime();
+    }
+
+    /**
+     * @param parameter A parameter received from the device.
+     * @param value Its value, in the units of the device.
+     * @return Whether it is the echo of a value sent to the device recently,
+     *         so it should not be forwarded.
+     */
+    public synchronized boolean isEcho(Parameter parameter, int value) {
+        checkedCount++;
+        int index = parameter.getIndex();
+        if (index < 0 || index >= sentParameters.length || sentParameters[index] != parameter) {
+            return false;
+        }
+        if (System.nanoTime() - sentTimes[index] > windowNanos ||
+                Math.abs(value - sentValues[index]) > tolerance) {
+            return false;
+        }
+        suppressedCount++;
+        return true;
+    }
+
+    /**
+     * @return Human-readable counts of the checked and the suppressed values.
+     */
+    public synchronized String getStatistics() {
+        return String.format("Echo from %s: %d suppressed of %d received", name, suppressedCount, checkedCount);
+    }
+}
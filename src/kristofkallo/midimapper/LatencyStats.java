@@ -0,0 +1,169 @@
+package kristofkallo.midimapper;
+
+import kristofkallo.midimapper.parameter.Parameter;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Time spent by messages inside the program, from their arrival until the
+ * output receiver has taken the mapped message. This includes the time the
+ * message waited for the pacing of the console output, if it is enabled.
+ * It is recorded per direction and per scale type of the parameter.
+ */
+public class LatencyStats implements LatencyStatsMBean {
+    public static final String OBJECT_NAME = "kristofkallo.midimapper:type=LatencyStats";
+
+    public enum Direction {
+        CONSOLE_TO_DAW("console -> DAW"),
+        DAW_TO_CONSOLE("DAW -> console");
+
+        private final String label;
+
+        Direction(String label) {
+            this.label = label;
+        }
+
+        public String getLabel() {
+            return label;
+        }
+    }
+
+    // Indexed by direction ordinal, then by scale ordinal
+    private final LatencyHistogram[][] histograms;
+    // Indexed by direction ordinal
+    private final LatencyHistogram[] totals;
+
+    public LatencyStats() {
+        histograms = new LatencyHistogram[Direction.values().length][Scale.values().length];
+        totals = new LatencyHistogram[Direction.values().length];
+        for (int i = 0; i < histograms.length; i++) {
+            totals[i] = new LatencyHistogram();
+            for (int j = 0; j < histograms[i].length; j++) {
+                histograms[i][j] = new LatencyHistogram();
+            }
+        }
+    }
+
+    /**
+     * Records the time since the arrival of the message that carried the parameter's value.
+     *
+     * @param arrivalNanos The value of {@link System#nanoTime()} when the message arrived.
+     */
+    public void record(Direction direction, Parameter parameter, long arrivalNanos) {
+        long latency = System.nanoTime() - arrivalNanos;
+        totals[direction.ordinal()].record(latency);
+        histograms[direction.ordinal()][parameter.getScale().ordinal()].record(latency);
+    }
+
+    public LatencyHistogram getHistogram(Direction direction) {
+        return totals[direction.ordinal()];
+    }
+
+    private static double micros(long nanos) {
+        return nanos / 1000.0;
+    }
+
+    @Override
+    public long getConsoleToDAWCount() {
+        return getHistogram(Direction.CONSOLE_TO_DAW).getCount();
+    }
+
+    @Override
+    public double getConsoleToDAWP50() {
+        return micros(getHistogram(Direction.CONSOLE_TO_DAW).getValueAtPercentile(50));
+    }
+
+    @Override
+    public double getConsoleToDAWP99() {
+        return micros(getHistogram(Direction.CONSOLE_TO_DAW).getValueAtPercentile(99));
+    }
+
+    @Override
+    public double getConsoleToDAWP999() {
+        return micros(getHistogram(Direction.CONSOLE_TO_DAW).getValueAtPercentile(99.9));
+    }
+
+    @Override
+    public double getConsoleToDAWMax() {
+        return micros(getHistogram(Direction.CONSOLE_TO_DAW).getMax());
+    }
+
+    @Override
+    public long getDAWToConsoleCount() {
+        return getHistogram(Direction.DAW_TO_CONSOLE).getCount();
+    }
+
+    @Override
+    public double getDAWToConsoleP50() {
+        return micros(getHistogram(Direction.DAW_TO_CONSOLE).getValueAtPercentile(50));
+    }
+
+    @Override
+    public double getDAWToConsoleP99() {
+        return micros(getHistogram(Direction.DAW_TO_CONSOLE).getValueAtPercentile(99));
+    }
+
+    @Override
+    public double getDAWToConsoleP999() {
+        return micros(getHistogram(Direction.DAW_TO_CONSOLE).getValueAtPercentile(99.9));
+    }
+
+    @Override
+    public double getDAWToConsoleMax() {
+        return micros(getHistogram(Direction.DAW_TO_CONSOLE).getMax());
+    }
+
+    @Override
+    public String[] getReport() {
+        List<String> lines = new ArrayList<>();
+        for (Direction direction : Direction.values()) {
+            lines.add(formatLine(direction.getLabel() + " all", totals[direction.ordinal()]));
+            for (Scale scale : Scale.values()) {
+                LatencyHistogram histogram = histograms[direction.ordinal()][scale.ordinal()];
+                if (histogram.getCount() > 0) {
+                    lines.add(formatLine(direction.getLabel() + " " + scale, histogram));
+                }
+            }
+        }
+        return lines.toArray(new String[0]);
+    }
+
+    private static String formatLine(String label, LatencyHistogram histogram) {
+        return String.format("%-24s count %9d  p50 %9.1f us  p99 %9.1f us  p99.9 %9.1f us  max %9.1f us",
+                label,
+                histogram.getCount(),
+                micros(histogram.getValueAtPercentile(50)),
+                micros(histogram.getValueAtPercentile(99)),
+                micros(histogram.getValueAtPercentile(99.9)),
+                micros(histogram.getMax()));
+    }
+
+    @Override
+    public void reset() {
+        for (int i = 0; i < histograms.length; i++) {
+            totals[i].reset();
+            for (LatencyHistogram histogram : histograms[i]) {
+                histogram.reset();
+            }
+        }
+    }
+
+    /**
+     * Appends the report to a log file with a time stamp.
+     */
+    public void dump(String pathname) throws IOException {
+        try (PrintWriter writer = new PrintWriter(new FileWriter(pathname, true))) {
+            writer.println("Latency at " + new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date()));
+            for (String line : getReport()) {
+                writer.println(line);
+            }
+            writer.println();
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package kristofkallo.midimapper;
+
+/**
+ * Management interface of {@link LatencyStats}.
+ * Latencies are in microseconds.
+ */
+public interface LatencyStatsMBean {
+    long getConsoleToDAWCount();
+
+    double getConsoleToDAWP50();
+
+    double getConsoleToDAWP99();
+
+    double getConsoleToDAWP999();
+
+    double getConsoleToDAWMax();
+
+    long getDAWToConsoleCount();
+
+    double getDAWToConsoleP50();
+
+    double getDAWToConsoleP99();
+
+    double getDAWToConsoleP999();
+
+    double getDAWToConsoleMax();
+
+    /**
+     * @return One line per direction and scale type.
+     */
+    String[] getReport();
+
+    void reset();
+}
@@ -4,9 +4,6 @@ import kristofkallo.midimapper.parameter.Parameter;
 
 import javax.sound.midi.*;
 
-import static kristofkallo.midimapper.MidiDataTransform.fromByteArrayUnsigned;
-import static kristofkallo.midimapper.MidiDataTransform.toByteArray;
-
 public class LoopMidiReceiver implements Receiver {
     public static final int NRPN_STAGE_BEGIN = 0;
     public static final int NRPN_STAGE_CHANNEL = 99;
@@ -14,8 +11,13 @@ public class LoopMidiReceiver implements Receiver {
     public static final int NRPN_STAGE_VALUE_MSB = 6;
     public static final int NRPN_STAGE_VALUE_LSB = 38;
 
-    private final Receiver receiver;
-    private final MidiMap midiMap;
+    private final ParameterOutput output;
+    /**
+     * Can be replaced while messages are being received, see {@link #setMidiMap(MidiMap)}.
+     */
+    private volatile MidiMap midiMap;
+    private final ConsoleState consoleState;
+    private final EchoSuppressor echoSuppressor;
 
     private byte channelNrpn;
     private byte paramNrpn;
@@ -25,67 +27,107 @@ public class LoopMidiReceiver implements Receiver {
     private Channel channel;
     private Parameter param;
 
+    /**
+     * When the message being processed arrived, as given by {@link System#nanoTime()}.
+     */
+    private long arrivalNanos;
+
     /**
      * Keeps track of the nrpn message parts to ensure the correct order.
      * For more information on how NRPN works, read this: https://en.wikipedia.org/wiki/NRPN
      */
     private int nrpnStage = 0;
 
-    public LoopMidiReceiver(Receiver receiver, MidiMap midiMap) {
-        this.receiver = receiver;
+    public LoopMidiReceiver(ParameterOutput output, MidiMap midiMap) {
+        this(output, midiMap, null, null);
+    }
+
+    /**
+     * @param consoleState Where to record the console values that pass through, null if not needed.
+     * @param echoSuppressor The output towards the device that this receiver listens to,
+     *                       whose echoes are dropped, null if not needed.
+     */
+    public LoopMidiReceiver(ParameterOutput output, MidiMap midiMap, ConsoleState consoleState, EchoSuppressor echoSuppressor) {
+        this.output = output;
+        this.midiMap = midiMap;
+        this.consoleState = consoleState;
+        this.echoSuppressor = echoSuppressor;
+    }
+
+    /**
+     * Replaces the map, e.g. after map.xml has been edited.
+     * Messages that are being processed are finished with the previous map.
+     */
+    public void setMidiMap(MidiMap midiMap) {
         this.midiMap = midiMap;
     }
 
     @Override
     public void send(MidiMessage message, long timeStamp) {
+        arrivalNanos = message instanceof RawMidiMessage ?
+                ((RawMidiMessage) message).getArrivalNanos() : System.nanoTime();
         sanityCheck();
 
-        byte[] msg = message.getMessage();
-        if (isNotNrpn(msg)) {
+        if (message.getLength() < 3) {
             return;
         }
-        transformAndForwardNrpnAndHandleErrors(msg, timeStamp);
+        int status;
+        int controller;
+        int value;
+        if (message instanceof ShortMessage) {
+            // Reading the fields does not copy the buffer
+            ShortMessage shortMessage = (ShortMessage) message;
+            status = shortMessage.getStatus();
+            controller = shortMessage.getData1();
+            value = shortMessage.getData2();
+        } else {
+            byte[] msg = MidiMessageAccess.bufferOf(message);
+            status = msg[0] & 0xff;
+            controller = msg[1];
+            value = msg[2];
+        }
+        if (isNotNrpn(status)) {
+            return;
+        }
+        transformAndForwardNrpnAndHandleErrors(controller, (byte) value, timeStamp);
     }
 
     private void sanityCheck() {
-        if (receiver == null) {
-            throw new NullPointerException("receiver is null, this should not happen");
+        if (output == null) {
+            throw new NullPointerException("output is null, this should not happen");
         }
         if (midiMap == null) {
             throw new NullPointerException("midiMap is null, this should not happen");
         }
     }
 
-    private boolean isNotNrpn(byte[] msg) {
-        return msg[0] != (byte) ShortMessage.CONTROL_CHANGE;
+    private boolean isNotNrpn(int status) {
+        return status != ShortMessage.CONTROL_CHANGE;
     }
 
-    private void transformAndForwardNrpnAndHandleErrors(byte[] msg, long timestamp) {
+    private void transformAndForwardNrpnAndHandleErrors(int controller, byte value, long timestamp) {
         try {
-            transformAndForwardNrpn(msg, timestamp);
+            transformAndForwardNrpn(controller, value, timestamp);
         } catch (InvalidMidiDataException e) {
             e.printStackTrace();
-        } catch (ArrayIndexOutOfBoundsException e) {
-            System.err.println("MIDI message too short");
         }
     }
 
-    private void transformAndForwardNrpn(byte[] msg, long timeStamp) throws InvalidMidiDataException, ArrayIndexOutOfBoundsException {
-        switch (msg[1]) {
-            case (byte) NRPN_STAGE_CHANNEL:
-                handleChannelPartOfNrpn(msg[2]);
+    private void transformAndForwardNrpn(int controller, byte value, long timeStamp) throws InvalidMidiDataException {
+        switch (controller) {
+            case NRPN_STAGE_CHANNEL:
+                handleChannelPartOfNrpn(value);
                 break;
-            case (byte) NRPN_STAGE_PARAM:
-                handleParamPartOfNrpn(msg[2]);
+            case NRPN_STAGE_PARAM:
+                handleParamPartOfNrpn(value);
                 break;
-            case (byte) NRPN_STAGE_VALUE_MSB:
-                handleValueMSBPartOfNrpn(msg[2]);
+            case NRPN_STAGE_VALUE_MSB:
+                handleValueMSBPartOfNrpn(value);
                 break;
-            case (byte) NRPN_STAGE_VALUE_LSB:
-                handleValueLSBPartOfNrpn(msg[2]);
-
-                transformAndForwardMsg(timeStamp);
-
+            case NRPN_STAGE_VALUE_LSB:
+                if (handleValueLSBPartOfNrpn(value)) {
+                    transformAndForwardMsg(timeStamp);
+                }
                 break;
             default:
                 nrpnStage = NRPN_STAGE_BEGIN;
@@ -97,9 +139,11 @@ public class LoopMidiReceiver implements Receiver {
         channelNrpn = _channelNrpn;
     }
 
+    // The parts that did not change since the previous value may be left out
+    // (running status), so a part is also accepted after any later part.
+
     private void handleParamPartOfNrpn(byte _paramNrpn) {
-        if (nrpnStage != NRPN_STAGE_CHANNEL) {
-            nrpnStage = NRPN_STAGE_BEGIN;
+        if (nrpnStage == NRPN_STAGE_BEGIN) {
             return;
         }
         nrpnStage = NRPN_STAGE_PARAM;
@@ -107,7 +151,7 @@ public class LoopMidiReceiver implements Receiver {
     }
 
     private void handleValueMSBPartOfNrpn(byte _valueMSB) {
-        if (nrpnStage != NRPN_STAGE_PARAM) {
+        if (nrpnStage == NRPN_STAGE_BEGIN || nrpnStage == NRPN_STAGE_CHANNEL) {
             nrpnStage = NRPN_STAGE_BEGIN;
             return;
         }
@@ -115,13 +159,17 @@ public class LoopMidiReceiver implements Receiver {
         valueMSB = _valueMSB;
     }
 
-    private void handleValueLSBPartOfNrpn(byte _valueLSB) {
-        if (nrpnStage != NRPN_STAGE_VALUE_MSB) {
+    /**
+     * @return Whether the value is complete and can be forwarded.
+     */
+    private boolean handleValueLSBPartOfNrpn(byte _valueLSB) {
+        if (nrpnStage != NRPN_STAGE_VALUE_MSB && nrpnStage != NRPN_STAGE_VALUE_LSB) {
             nrpnStage = NRPN_STAGE_BEGIN;
-            return;
+            return false;
         }
         nrpnStage = NRPN_STAGE_VALUE_LSB;
         valueLSB = _valueLSB;
+        return true;
     }
 
     private void transformAndForwardMsg(long timeStamp) throws InvalidMidiDataException {
@@ -129,14 +177,19 @@ public class LoopMidiReceiver implements Receiver {
         if (channelNotFound() || parameterNotFound()) {
             return;
         }
-        byte[] dstData = transformMsg();
-        byte[] outMsgData = buildSysexMsg(dstData);
-        sendMsg(outMsgData, timeStamp);
+        if (echoSuppressor != null && echoSuppressor.isEcho(param, valueMSB << 7 | valueLSB)) {
+            return;
+        }
+        int value = transformMsg();
+        if (consoleState != null) {
+            consoleState.set(param, value);
+        }
+        output.send(param, value, timeStamp, arrivalNanos);
     }
 
     private void findChannelAndParamFromMidiMap() {
         channel = midiMap.getChannelByNrpn(channelNrpn);
-        param = channel.getParameterByNrpn(paramNrpn);
+        param = channel == null ? null : channel.getParameterByNrpn(paramNrpn);
     }
 
     private boolean channelNotFound() {
@@ -159,42 +212,8 @@ public class LoopMidiReceiver implements Receiver {
         return false;
     }
 
-    private byte[] transformMsg() {
-        byte[] srcData = new byte[]{valueMSB, valueLSB};
-        return toByteArray(
-                param.mapDAWToConsole(
-                        fromByteArrayUnsigned(srcData)
-                ), param.getLengthInBytes()
-        );
-    }
-
-    private byte[] buildSysexMsg(byte[] dstData) {
-        int outMsgLen = 13 + param.getLengthInBytes();
-        byte[] outMsgData = new byte[outMsgLen];
-        outMsgData[0] = M400ByteCode.SYS_EX_STATUS_BYTE.getCode();
-        outMsgData[1] = M400ByteCode.MANUFACTURER_ID.getCode();
-        outMsgData[2] = M400ByteCode.DEVICE_ID.getCode();
-        outMsgData[3] = M400ByteCode.MODEL_ID_0.getCode();
-        outMsgData[4] = M400ByteCode.MODEL_ID_1.getCode();
-        outMsgData[5] = M400ByteCode.MODEL_ID_2.getCode();
-        outMsgData[6] = M400ByteCode.DATA_SET_COMMAND_ID.getCode();
-        outMsgData[7] = channel.getAddress().getSysex0();
-        outMsgData[8] = channel.getAddress().getSysex1();
-        outMsgData[9] = param.getAddress().getSysex0();
-        outMsgData[10] = param.getAddress().getSysex1();
-        System.arraycopy(dstData, 0, outMsgData, 11, param.getLengthInBytes());
-        int checksum = 0;
-        for (int i = 7; i < 11 + param.getLengthInBytes(); i++) {
-            checksum += outMsgData[i];
-        }
-        outMsgData[11 + param.getLengthInBytes()] = (byte) ((128 - checksum) & 127);
-        outMsgData[12 + param.getLengthInBytes()] = M400ByteCode.EOX.getCode();
-        return outMsgData;
-    }
-
-    private void sendMsg(byte[] outMsgData, long timeStamp) throws InvalidMidiDataException {
-        SysexMessage outMsg = new SysexMessage(outMsgData, outMsgData.length);
-        receiver.send(outMsg, timeStamp);
+    private int transformMsg() {
+        return param.mapDAWToConsole(valueMSB << 7 | valueLSB);
     }
 
     @Override
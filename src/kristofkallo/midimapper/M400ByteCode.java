@@ -9,9 +9,24 @@ public enum M400ByteCode {
     MODEL_ID_0 ((byte) 0x00),
     MODEL_ID_1 ((byte) 0x00),
     MODEL_ID_2 ((byte) 0x24),
+    DATA_REQUEST_COMMAND_ID ((byte) 0x11),
     DATA_SET_COMMAND_ID ((byte) 0x12),
     EOX ((byte) SysexMessage.SPECIAL_SYSTEM_EXCLUSIVE);
 
+    /**
+     * Offset of the 4-byte address in a Data Set message, right after the header.
+     */
+    public static final int ADDRESS_OFFSET = 7;
+    /**
+     * Offset of the data in a Data Set message, right after the address.
+     * The data is followed by the checksum and the EOX byte.
+     */
+    public static final int DATA_OFFSET = 11;
+    /**
+     * Length of a Data Request message: header, 4 address bytes, 4 size bytes, checksum and EOX.
+     */
+    public static final int REQUEST_LENGTH = 17;
+
     private final byte code;
     M400ByteCode(byte code) {
         this.code = code;
@@ -24,4 +39,44 @@ public enum M400ByteCode {
     public byte getCode() {
         return code;
     }
+
+    /**
+     * Writes the header of a message to the console: the SysEx status byte,
+     * the manufacturer, device and model ids, and the command.
+     *
+     * @param command {@link #DATA_SET_COMMAND_ID} or {@link #DATA_REQUEST_COMMAND_ID}.
+     */
+    public static void putHeader(byte[] message, M400ByteCode command) {
+        message[0] = SYS_EX_STATUS_BYTE.code;
+        message[1] = MANUFACTURER_ID.code;
+        message[2] = DEVICE_ID.code;
+        message[3] = MODEL_ID_0.code;
+        message[4] = MODEL_ID_1.code;
+        message[5] = MODEL_ID_2.code;
+        message[6] = command.code;
+    }
+
+    /**
+     * Writes a 28-bit number, e.g. an address, as four 7-bit bytes, the most significant first.
+     */
+    public static void putAddress(byte[] message, int offset, int value) {
+        message[offset] = (byte) (value >> 21 & 127);
+        message[offset + 1] = (byte) (value >> 14 & 127);
+        message[offset + 2] = (byte) (value >> 7 & 127);
+        message[offset + 3] = (byte) (value & 127);
+    }
+
+    /**
+     * Writes the Roland checksum, which makes the sum of the address, the data
+     * and the checksum bytes a multiple of 128.
+     *
+     * @param checksumIndex The index of the checksum, right after the data.
+     */
+    public static void putChecksum(byte[] message, int checksumIndex) {
+        int sum = 0;
+        for (int i = ADDRESS_OFFSET; i < checksumIndex; i++) {
+            sum += message[i];
+        }
+        message[checksumIndex] = (byte) ((128 - sum) & 127);
+    }
 }
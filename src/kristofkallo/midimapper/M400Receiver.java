@@ -5,86 +5,101 @@ import kristofkallo.midimapper.parameter.Parameter;
 import javax.sound.midi.InvalidMidiDataException;
 import javax.sound.midi.MidiMessage;
 import javax.sound.midi.Receiver;
-import javax.sound.midi.ShortMessage;
-import java.util.Arrays;
-
-import static kristofkallo.midimapper.MidiDataTransform.fromByteArraySigned;
-import static kristofkallo.midimapper.MidiDataTransform.toByteArray;
 
 
 public class M400Receiver implements Receiver {
-    private static final byte EOX = (byte) 0xf7; // End of System Exclusive message
-    private static final byte MANUFACTURER_ID = 0x41;
-    private static final byte DEVICE_ID = 0x00;
-    private static final byte[] MODEL_ID = {0x00, 0x00, 0x24};
-    private static final byte DATA_SET_COMMAND_ID = 0x12;
+    private final ParameterOutput output;
+    /**
+     * Can be replaced while messages are being received, see {@link #setMidiMap(MidiMap)}.
+     */
+    private volatile MidiMap midiMap;
+    private final ConsoleState consoleState;
+    private final EchoSuppressor echoSuppressor;
+    private final DataSetDecoder.ValueHandler forwarder = this::forward;
+
+    // The message being decoded
+    private long timeStamp;
+    private long arrivalNanos;
+
+    private volatile long checksumErrors;
+
+    public M400Receiver(ParameterOutput output, MidiMap midiMap) {
+        this(output, midiMap, null, null);
+    }
 
-    private final Receiver receiver;
-    private final MidiMap midiMap;
+    /**
+     * @param consoleState Where to record the console values that pass through, null if not needed.
+     * @param echoSuppressor The output towards the device that this receiver listens to,
+     *                       whose echoes are dropped, null if not needed.
+     */
+    public M400Receiver(ParameterOutput output, MidiMap midiMap, ConsoleState consoleState, EchoSuppressor echoSuppressor) {
+        this.output = output;
+        this.midiMap = midiMap;
+        this.consoleState = consoleState;
+        this.echoSuppressor = echoSuppressor;
+    }
 
-    public M400Receiver(Receiver receiver, MidiMap midiMap) {
-        this.receiver = receiver;
+    /**
+     * Replaces the map, e.g. after map.xml has been edited.
+     * Messages that are being processed are finished with the previous map.
+     */
+    public void setMidiMap(MidiMap midiMap) {
         this.midiMap = midiMap;
     }
 
     @Override
     public void send(MidiMessage message, long timeStamp) {
+        long arrivalNanos = message instanceof RawMidiMessage ?
+                ((RawMidiMessage) message).getArrivalNanos() : System.nanoTime();
+        // Read the map only once, it may be replaced meanwhile
+        MidiMap midiMap = this.midiMap;
         // Sanity check
-        if (receiver == null) {
-            throw new NullPointerException("receiver is null, this should not happen");
+        if (output == null) {
+            throw new NullPointerException("output is null, this should not happen");
         }
         if (midiMap == null) {
             throw new NullPointerException("midiMap is null, this should not happen");
         }
 
-        byte[] msg = message.getMessage();
-        // SysEx status byte f0 which is -16
+        // The buffer may be longer than the message
+        byte[] msg = MidiMessageAccess.bufferOf(message);
+        int length = message.getLength();
+        if (!DataSetDecoder.isDataSet(msg, length) || DataSetDecoder.getStartAddress(msg) < 0) {
+            return;
+        }
+        if (!DataSetDecoder.isChecksumValid(msg, length)) {
+            checksumErrors++;
+            System.err.println("Checksum error in a Data Set message from the console");
+            return;
+        }
+        this.timeStamp = timeStamp;
+        this.arrivalNanos = arrivalNanos;
         try {
-            if (M400ByteCode.SYS_EX_STATUS_BYTE.is(msg[0]) &&
-                    M400ByteCode.MANUFACTURER_ID.is(msg[1]) &&
-                    M400ByteCode.DEVICE_ID.is(msg[2]) &&
-                    M400ByteCode.MODEL_ID_0.is(msg[3]) &&
-                    M400ByteCode.MODEL_ID_1.is(msg[4]) &&
-                    M400ByteCode.MODEL_ID_2.is(msg[5]) &&
-                    M400ByteCode.DATA_SET_COMMAND_ID.is(msg[6])) {
-                Channel channel = midiMap.getChannelByAddress(msg[7], msg[8]);
-                if (channel == null) {
-                    // Channel unmapped, i.e. unused
-                    return;
-                }
-
-                Parameter param = channel.getParameterByAddress(msg[9], msg[10]);
-                if (param == null) {
-                    // Parameter unmapped, i.e. unused
-                    return;
-                }
-
-                byte[] srcData = Arrays.copyOfRange(msg, 11, 11 + param.getLengthInBytes());
-
-                byte[] dstData = toByteArray(
-                        param.mapConsoleToDAW(
-                                fromByteArraySigned(srcData)
-                        ), 2
-                );
-
-                ShortMessage outMsg = new ShortMessage();
-                outMsg.setMessage(ShortMessage.CONTROL_CHANGE, 0, 99, channel.getAddress().getNrpn());
-                receiver.send(outMsg, timeStamp);
-                outMsg.setMessage(ShortMessage.CONTROL_CHANGE, 0, 98, param.getAddress().getNrpn());
-                receiver.send(outMsg, timeStamp);
-                outMsg.setMessage(ShortMessage.CONTROL_CHANGE, 0, 6, dstData[0]);
-                receiver.send(outMsg, timeStamp);
-                outMsg.setMessage(ShortMessage.CONTROL_CHANGE, 0, 38, dstData[1]);
-                receiver.send(outMsg, timeStamp);
-
-            }
+            // Every mapped parameter of the payload, see forward
+            DataSetDecoder.walk(msg, length, midiMap, forwarder);
         } catch (InvalidMidiDataException e) {
             e.printStackTrace();
-        } catch (ArrayIndexOutOfBoundsException e) {
-            System.err.println("MIDI message too short");
         }
     }
 
+    private void forward(Parameter param, int srcData) throws InvalidMidiDataException {
+        if (echoSuppressor != null && echoSuppressor.isEcho(param, srcData)) {
+            return;
+        }
+        if (consoleState != null) {
+            consoleState.set(param, srcData);
+        }
+        int dstData = param.mapConsoleToDAW(srcData);
+        output.send(param, dstData, timeStamp, arrivalNanos);
+    }
+
+    /**
+     * @return The number of messages dropped because of a wrong checksum.
+     */
+    public long getChecksumErrors() {
+        return checksumErrors;
+    }
+
     @Override
     public void close() {
 
@@ -1,34 +1,54 @@
 package kristofkallo.midimapper;
 
-import javax.swing.*;
-import java.awt.*;
-import java.io.FileNotFoundException;
+import java.io.IOException;
 
 /***
  * The entry point of the application.
+ *
+ * It runs with the tray menu, or headless with the --headless argument or
+ * when the JVM is headless. The headless mode does not touch AWT or Swing at
+ * all, so they are not even loaded, and it is controlled with text commands,
+ * see {@link ControlInterface}.
  */
 public class Main {
 
     static App app;
-    /**
-     * This JPanel is not displayed directly but is used as a parent component
-     * to display application-level error messages.
-     */
-    static private final JPanel panel = new JPanel();
 
     public static void main(String[] args) {
-        panel.setVisible(false);
+        app = new App();
+        if (isHeadless(args)) {
+            runHeadless();
+        } else {
+            TrayMenu.start(app);
+        }
+    }
+
+    private static boolean isHeadless(String[] args) {
+        for (String arg : args) {
+            if (arg.equals("--headless")) {
+                return true;
+            }
+        }
+        // Without asking AWT, which would load it
+        return Boolean.getBoolean("java.awt.headless");
+    }
+
+    private static void runHeadless() {
+        ControlInterface controlInterface = new ControlInterface(app);
+        app.start(new ConsoleNotifier(), true);
+        int port = app.getSettings().getInt("control.port", 0);
+        if (port > 0) {
+            try {
+                controlInterface.startSocket(port);
+            } catch (IOException e) {
+                System.err.println("The control socket could not be opened on port " + port + ": " + e.getLocalizedMessage());
+            }
+        }
+        System.out.println(ControlInterface.HELP);
         try {
-            app = new App();
-        } catch (AWTException e) {
-            JOptionPane.showMessageDialog(panel, "Tray icon error: " + e.getLocalizedMessage(), "Error", JOptionPane.ERROR_MESSAGE);
-            app.quit();
-        } catch (FileNotFoundException e) {
-            JOptionPane.showMessageDialog(panel, "File not found: " + e.getLocalizedMessage(), "Error", JOptionPane.ERROR_MESSAGE);
-            app.quit();
-        } /*catch (MidiUnavailableException e) {
-            JOptionPane.showMessageDialog(panel, "MIDI unavailable: " + e.getLocalizedMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+            controlInterface.runStandardInput();
+        } catch (InterruptedException e) {
             app.quit();
-        }*/
+        }
     }
 }
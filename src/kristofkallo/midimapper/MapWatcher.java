@@ -0,0 +1,99 @@
+package kristofkallo.midimapper;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches a file for changes on a daemon thread, and calls back on that
+ * thread after the file has been changed.
+ * Editors often write a file in several steps, so the callback only comes
+ * once no further change has been seen for a quiet period.
+ */
+public class MapWatcher {
+    private final Path directory;
+    private final Path fileName;
+    private final long quietPeriodMillis;
+    private final Runnable onChange;
+    private final WatchService watchService;
+    private final Thread watcherThread;
+
+    /**
+     * @param pathname The file to watch.
+     * @param quietPeriodMillis How long the file must be left alone before the callback.
+     * @param onChange Called on the watcher thread after each change.
+     */
+    public MapWatcher(String pathname, long quietPeriodMillis, Runnable onChange) throws IOException {
+        Path path = Paths.get(pathname).toAbsolutePath();
+        this.directory = path.getParent();
+        this.fileName = path.getFileName();
+        this.quietPeriodMillis = quietPeriodMillis;
+        this.onChange = onChange;
+        watchService = FileSystems.getDefault().newWatchService();
+        // Watch the directory, as editors may replace the file instead of writing it
+        directory.register(watchService,
+                StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_MODIFY);
+        watcherThread = new Thread(this::runWatcher, "Map watcher " + fileName);
+        watcherThread.setDaemon(true);
+        watcherThread.start();
+    }
+
+    private void runWatcher() {
+        try {
+            while (true) {
+                if (!isFileChanged(watchService.take())) {
+                    continue;
+                }
+                // Wait until the writes are over
+                WatchKey key;
+                while ((key = watchService.poll(quietPeriodMillis, TimeUnit.MILLISECONDS)) != null) {
+                    isFileChanged(key);
+                }
+                try {
+                    onChange.run();
+                } catch (RuntimeException e) {
+                    System.err.println("Error handling the change of " + fileName);
+                    e.printStackTrace();
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // Closed
+        }
+    }
+
+    /**
+     * Consumes the events of the key.
+     *
+     * @return Whether any of them concerns the watched file.
+     */
+    private boolean isFileChanged(WatchKey key) {
+        boolean changed = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW || fileName.equals(event.context())) {
+                changed = true;
+            }
+        }
+        key.reset();
+        return changed;
+    }
+
+    /**
+     * Stops watching. No callback is made after this returns, except one already in progress.
+     */
+    public void close() {
+        try {
+            watchService.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        watcherThread.interrupt();
+    }
+}
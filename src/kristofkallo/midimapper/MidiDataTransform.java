@@ -22,6 +22,24 @@ public interface MidiDataTransform {
         return fromByteArrayUnsigned(bytes);
     }
 
+    /**
+     * Interprets a range of an array of 7-bit bytes as an integer.
+     * The first byte in the range is the MSB.
+     * If signed, the number follows the two's complement representation.
+     *
+     * @param bytes Array containing 7-bit bytes in the given range.
+     * @param offset Index of the first byte of the number.
+     * @param length Number of bytes of the number.
+     * @param isSigned Type of the byte array representation.
+     * @return The converted number.
+     */
+    static int fromByteArray(byte[] bytes, int offset, int length, boolean isSigned) {
+        if (isSigned) {
+            return fromByteArraySigned(bytes, offset, length);
+        }
+        return fromByteArrayUnsigned(bytes, offset, length);
+    }
+
     /**
      * Interprets an array of 7-bit bytes as a signed integer.
      * The first byte in the array is the MSB.
@@ -32,11 +50,25 @@ public interface MidiDataTransform {
      * @return The converted number.
      */
     static int fromByteArraySigned(byte[] bytes) {
-        int result = fromByteArrayUnsigned(bytes);
+        return fromByteArraySigned(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Interprets a range of an array of 7-bit bytes as a signed integer.
+     * The first byte in the range is the MSB.
+     * The number follows the two's complement representation.
+     *
+     * @param bytes Array containing 7-bit bytes in the given range.
+     * @param offset Index of the first byte of the number.
+     * @param length Number of bytes of the number.
+     * @return The converted number.
+     */
+    static int fromByteArraySigned(byte[] bytes, int offset, int length) {
+        int result = fromByteArrayUnsigned(bytes, offset, length);
         // negative
-        if (bytes[0] >= 64) {
+        if (bytes[offset] >= 64) {
             int mask = -1;
-            mask = mask << (bytes.length * 7);
+            mask = mask << (length * 7);
             result = result | mask;
         }
         return result;
@@ -51,9 +83,22 @@ public interface MidiDataTransform {
      * @return The converted number.
      */
     static int fromByteArrayUnsigned(byte[] bytes) {
+        return fromByteArrayUnsigned(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Interprets a range of an array of 7-bit bytes as an unsigned integer.
+     * The first byte in the range is the MSB.
+     *
+     * @param bytes Array containing 7-bit bytes in the given range.
+     * @param offset Index of the first byte of the number.
+     * @param length Number of bytes of the number.
+     * @return The converted number.
+     */
+    static int fromByteArrayUnsigned(byte[] bytes, int offset, int length) {
         int result = 0;
-        for (int i = 0; i < bytes.length; i++) {
-            result += bytes[i] << ((bytes.length - i - 1) * 7);
+        for (int i = 0; i < length; i++) {
+            result += bytes[offset + i] << ((length - i - 1) * 7);
         }
         return result;
     }
@@ -75,4 +120,18 @@ public interface MidiDataTransform {
         }
         return result;
     }
+
+    /**
+     * Splits the data into 7-bit bytes written into an existing array.
+     * Overflown bits are lost, like in {@link #toByteArray(int, int)}.
+     *
+     * @param dst The array to write into.
+     * @param offset Index of the first byte to write, which will be the MSB.
+     * @param length The number of bytes to write.
+     */
+    static void toByteArray(int data, byte[] dst, int offset, int length) {
+        for (int i = 0; i < length; i++) {
+            dst[offset + i] = (byte) ((data >> ((length - i - 1) * 7)) & 127);
+        }
+    }
 }
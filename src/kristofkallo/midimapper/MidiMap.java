@@ -7,17 +7,76 @@ import org.xml.sax.SAXException;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 public class MidiMap {
     private final ArrayList<Channel> channels;
+    /**
+     * Channels indexed by their packed SysEx address key, see {@link Address#sysexKey(byte, byte)}.
+     */
+    private final Channel[] channelsByAddress;
+    /**
+     * Channels indexed by their NRPN.
+     */
+    private final Channel[] channelsByNrpn;
+    /**
+     * All parameters of all channels, indexed by their dense index.
+     */
+    private final ArrayList<Parameter> parameters;
 
-    MidiMap(String pathname) throws ParserConfigurationException, IOException, SAXException {
-        channels = readMap(pathname);
+    MidiMap(String pathname) throws ParserConfigurationException, IOException, SAXException, XMLStreamException {
+        this(pathname, true);
+    }
+
+    /**
+     * @param streaming Whether to read the file in a single pass with StAX,
+     *                  or to build its DOM tree first.
+     */
+    MidiMap(String pathname, boolean streaming) throws ParserConfigurationException, IOException, SAXException, XMLStreamException {
+        this(streaming ? readMapStreaming(pathname) : readMap(pathname));
+    }
+
+    private MidiMap(ArrayList<Channel> channels) {
+        this.channels = channels;
+        channelsByAddress = new Channel[Address.SYSEX_KEY_COUNT];
+        channelsByNrpn = new Channel[Address.NRPN_COUNT];
+        parameters = new ArrayList<>();
+        buildIndex();
+    }
+
+    private void buildIndex() {
+        // The first channel with a given address wins, like the former linear search did
+        for (Channel channel : channels) {
+            Address address = channel.getAddress();
+            int key = address.getSysexKey();
+            if (key >= 0 && channelsByAddress[key] == null) {
+                channelsByAddress[key] = channel;
+            }
+            byte nrpn = address.getNrpn();
+            if (nrpn >= 0 && channelsByNrpn[nrpn] == null) {
+                channelsByNrpn[nrpn] = channel;
+            }
+            for (Parameter parameter : channel.getParameters()) {
+                parameter.setIndex(parameters.size());
+                parameters.add(parameter);
+            }
+        }
     }
 
     private static ArrayList<Channel> readMap(String pathname) throws ParserConfigurationException, IOException, SAXException {
@@ -34,11 +93,14 @@ public class MidiMap {
         // Get the scale info before the parameters, because the parameter constructors need them
         Map<String, ScalePoints> scalePointsMap = readScales(document);
 
+        ParameterFactory parameterFactory = new ParameterFactory();
+        Map<String, String> scaleIds = new HashMap<>();
+
         // Channels
         NodeList channelNodes = document.getElementsByTagName("channel");
         for(int i = 0; i < channelNodes.getLength(); i++) {
             Node channelNode = channelNodes.item(i);
-            Channel channel = readChannel(channelNode, scalePointsMap);
+            Channel channel = readChannel(channelNode, scalePointsMap, parameterFactory, scaleIds);
             channels.add(channel);
         }
         return channels;
@@ -78,7 +140,7 @@ public class MidiMap {
         return new ScalePoints(x, y);
     }
 
-    private static Channel readChannel(Node channelNode, Map<String, ScalePoints> scalePointsMap) throws SAXException {
+    private static Channel readChannel(Node channelNode, Map<String, ScalePoints> scalePointsMap, ParameterFactory parameterFactory, Map<String, String> scaleIds) throws SAXException {
         NamedNodeMap channelAttributes = channelNode.getAttributes();
         String id = channelAttributes.getNamedItem("id").getNodeValue();
         String name = channelAttributes.getNamedItem("name").getNodeValue();
@@ -102,7 +164,7 @@ public class MidiMap {
                 paramNode = paramNode.getNextSibling();
                 continue;
             }
-            Parameter parameter = readParameter(paramNode, scalePointsMap);
+            Parameter parameter = readParameter(paramNode, scalePointsMap, parameterFactory, scaleIds);
             channel.putParameter(parameter);
 
             paramNode = paramNode.getNextSibling();
@@ -111,7 +173,7 @@ public class MidiMap {
         return channel;
     }
 
-    private static Parameter readParameter(Node paramNode, Map<String, ScalePoints> scalePointsMap) throws SAXException {
+    private static Parameter readParameter(Node paramNode, Map<String, ScalePoints> scalePointsMap, ParameterFactory parameterFactory, Map<String, String> scaleIds) throws SAXException {
         String paramName = paramNode.getAttributes().getNamedItem("name").getNodeValue();
 
         Node addressNode = paramNode.getFirstChild();
@@ -152,33 +214,241 @@ public class MidiMap {
         Node coeffAttr = dataAttributes.getNamedItem("coeff");
         double coeff = coeffAttr == null ? 0 : Double.parseDouble(coeffAttr.getNodeValue());
 
-        String scaleId = MidiMap.getScaleId(paramName);
-
-        ParameterFactory parameterFactory = new ParameterFactory();
+        String scaleId = MidiMap.getScaleId(paramName, scaleIds);
 
         return parameterFactory.createParameter(scale, paramName, paramAddress,
                 bytes, signed, min, max, dMin, dMax, scalePointsMap.get(scaleId), exp, thresh, base, coeff);
     }
 
+    /**
+     * Loads the map from its compiled form if that is up to date with the map file,
+     * see {@link CompiledMapCache}. Otherwise, the map file is read with StAX,
+     * and the compiled form is written for the next time.
+     *
+     * @param pathname The map file.
+     * @param cachePathname The compiled map file.
+     */
+    static MidiMap loadCompiled(String pathname, String cachePathname) throws IOException, SAXException, XMLStreamException {
+        byte[] mapBytes = Files.readAllBytes(Paths.get(pathname));
+        byte[] hash = CompiledMapCache.hash(mapBytes);
+        ArrayList<Channel> channels = null;
+        try {
+            channels = CompiledMapCache.read(cachePathname, hash);
+        } catch (IOException e) {
+            System.err.println("Could not read the compiled map " + cachePathname + ": " + e.getMessage());
+        }
+        if (channels == null) {
+            ArrayList<ParameterSpec> parameterSpecs = new ArrayList<>();
+            channels = readMapStreaming(new ByteArrayInputStream(mapBytes), parameterSpecs);
+            try {
+                CompiledMapCache.write(cachePathname, hash, channels, parameterSpecs);
+            } catch (IOException e) {
+                System.err.println("Could not write the compiled map " + cachePathname);
+                e.printStackTrace();
+            }
+        }
+        return new MidiMap(channels);
+    }
+
+    private static ArrayList<Channel> readMapStreaming(String pathname) throws IOException, XMLStreamException, SAXException {
+        try (InputStream inputStream = new BufferedInputStream(new FileInputStream(pathname))) {
+            return readMapStreaming(inputStream, new ArrayList<ParameterSpec>());
+        }
+    }
+
+    /**
+     * Reads the map in a single pass without building a DOM tree.
+     * The scales are defined after the channels, so the parameters are only
+     * collected while streaming, and created once the scales are known.
+     *
+     * @param parameterSpecs Receives the specs of the created parameters in document order.
+     */
+    private static ArrayList<Channel> readMapStreaming(InputStream inputStream, List<ParameterSpec> parameterSpecs) throws XMLStreamException, SAXException {
+        ArrayList<Channel> channels = new ArrayList<>();
+        Map<String, ScalePoints> scalePointsMap = new HashMap<>(8);
+        Map<String, String> scaleIds = new HashMap<>();
+
+        XMLInputFactory inputFactory = XMLInputFactory.newInstance();
+        inputFactory.setProperty(XMLInputFactory.IS_COALESCING, false);
+        inputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        XMLStreamReader reader = inputFactory.createXMLStreamReader(inputStream);
+        try {
+            String channelId = null;
+            String channelName = null;
+            Channel channel = null;
+            ParameterSpec parameterSpec = null;
+            String scaleId = null;
+            ArrayList<double[]> scalePoints = new ArrayList<>();
+
+            while (reader.hasNext()) {
+                int event = reader.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    switch (reader.getLocalName()) {
+                        case "channel":
+                            channelId = reader.getAttributeValue(null, "id");
+                            channelName = reader.getAttributeValue(null, "name");
+                            channel = null;
+                            break;
+                        case "address":
+                            Address address = readAddress(reader);
+                            if (parameterSpec != null) {
+                                parameterSpec.address = address;
+                            } else if (channelId != null && channel == null) {
+                                channel = new Channel(channelId, channelName, address);
+                                channels.add(channel);
+                            }
+                            break;
+                        case "parameter":
+                            if (channel == null) {
+                                throw new XMLStreamException("Parameter before the address of its channel.", reader.getLocation());
+                            }
+                            parameterSpec = new ParameterSpec(channel, reader.getAttributeValue(null, "name"));
+                            parameterSpecs.add(parameterSpec);
+                            break;
+                        case "data":
+                            if (parameterSpec != null) {
+                                readData(reader, parameterSpec);
+                            }
+                            break;
+                        case "scale":
+                            scaleId = reader.getAttributeValue(null, "id");
+                            scalePoints.clear();
+                            break;
+                        case "point":
+                            scalePoints.add(new double[]{
+                                    Double.parseDouble(reader.getAttributeValue(null, "x")),
+                                    Double.parseDouble(reader.getAttributeValue(null, "y"))
+                            });
+                            break;
+                    }
+                } else if (event == XMLStreamConstants.END_ELEMENT) {
+                    switch (reader.getLocalName()) {
+                        case "channel":
+                            channelId = null;
+                            channel = null;
+                            break;
+                        case "parameter":
+                            parameterSpec = null;
+                            break;
+                        case "scale":
+                            int n = scalePoints.size();
+                            double[] x = new double[n];
+                            double[] y = new double[n];
+                            for (int i = 0; i < n; i++) {
+                                x[i] = scalePoints.get(i)[0];
+                                y[i] = scalePoints.get(i)[1];
+                            }
+                            scalePointsMap.put(scaleId, new ScalePoints(x, y));
+                            scaleId = null;
+                            break;
+                    }
+                }
+            }
+        } finally {
+            reader.close();
+        }
+
+        // Deferred step: every scale is known now
+        ParameterFactory parameterFactory = new ParameterFactory();
+        for (ParameterSpec spec : parameterSpecs) {
+            if (spec.address == null || spec.scale == null) {
+                throw new SAXException("Parameter " + spec.name + " of channel " + spec.channel.getId() + " has no address or data.");
+            }
+            spec.scalePoints = scalePointsMap.get(MidiMap.getScaleId(spec.name, scaleIds));
+            spec.parameter = parameterFactory.createParameter(spec.scale, spec.name, spec.address,
+                    spec.bytes, spec.signed, spec.min, spec.max, spec.dMin, spec.dMax, spec.scalePoints,
+                    spec.exp, spec.thresh, spec.base, spec.coeff);
+            spec.channel.putParameter(spec.parameter);
+        }
+        return channels;
+    }
+
+    private static Address readAddress(XMLStreamReader reader) {
+        byte sysex0 = Byte.parseByte(reader.getAttributeValue(null, "sysex0"), 16);
+        byte sysex1 = Byte.parseByte(reader.getAttributeValue(null, "sysex1"), 16);
+        byte nrpn = Byte.parseByte(reader.getAttributeValue(null, "nrpn"));
+        return new Address(sysex0, sysex1, nrpn);
+    }
+
+    private static void readData(XMLStreamReader reader, ParameterSpec spec) {
+        spec.bytes = Integer.parseInt(reader.getAttributeValue(null, "bytes"));
+        spec.scale = Scale.valueOf(reader.getAttributeValue(null, "scale"));
+        String signed = reader.getAttributeValue(null, "signed");
+        spec.signed = signed != null && Boolean.parseBoolean(signed);
+        spec.min = readDoubleAttribute(reader, "min");
+        spec.max = readDoubleAttribute(reader, "max");
+        spec.dMin = readDoubleAttribute(reader, "dmin");
+        spec.dMax = readDoubleAttribute(reader, "dmax");
+        spec.exp = readDoubleAttribute(reader, "exp");
+        spec.thresh = readDoubleAttribute(reader, "thresh");
+        spec.base = readDoubleAttribute(reader, "base");
+        spec.coeff = readDoubleAttribute(reader, "coeff");
+    }
+
+    private static double readDoubleAttribute(XMLStreamReader reader, String name) {
+        String value = reader.getAttributeValue(null, name);
+        return value == null ? 0 : Double.parseDouble(value);
+    }
+
+    public List<Channel> getChannels() {
+        return Collections.unmodifiableList(channels);
+    }
+
+    /**
+     * @return The number of parameters in the map, which is one more than the highest parameter index.
+     */
+    public int getParameterCount() {
+        return parameters.size();
+    }
+
+    public Parameter getParameter(int index) {
+        return parameters.get(index);
+    }
+
     public Channel getChannelByAddress(byte address0, byte address1) {
-        return channels.stream()
-                .filter(ch -> ch.getAddress().getSysex0() == address0 && ch.getAddress().getSysex1() == address1)
-                .findAny()
-                .orElse(null);
+        int key = Address.sysexKey(address0, address1);
+        if (key < 0) {
+            return null;
+        }
+        return channelsByAddress[key];
     }
     public Channel getChannelByNrpn(byte nrpn) {
-        return channels.stream()
-                .filter(ch -> ch.getAddress().getNrpn() == nrpn)
-                .findAny()
-                .orElse(null);
-    }
-
-    private static String getScaleId(String name) {
-        name = name.replace(' ', '-');
-        // remove digits, so that the different parameters
-        // whose names only differ in numbers
-        // should have the same scales, e.g. "aux01 send" and "aux02 send"
-        name = name.replaceAll("\\d", "");
-        return "scale-" + name;
+        if (nrpn < 0) {
+            return null;
+        }
+        return channelsByNrpn[nrpn];
+    }
+
+    /**
+     * @return The id of the scale that the parameters with this name use.
+     */
+    static String getScaleId(String name) {
+        return getScaleId(name, new HashMap<>());
+    }
+
+    /**
+     * @param scaleIds The scale ids computed so far by parameter name, so that
+     *                 the parameters of every channel share the same instances.
+     */
+    private static String getScaleId(String name, Map<String, String> scaleIds) {
+        String scaleId = scaleIds.get(name);
+        if (scaleId != null) {
+            return scaleId;
+        }
+        StringBuilder builder = new StringBuilder(6 + name.length());
+        builder.append("scale-");
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            // remove digits, so that the different parameters
+            // whose names only differ in numbers
+            // should have the same scales, e.g. "aux01 send" and "aux02 send"
+            if (c >= '0' && c <= '9') {
+                continue;
+            }
+            builder.append(c == ' ' ? '-' : c);
+        }
+        scaleId = builder.toString();
+        scaleIds.put(name, scaleId);
+        return scaleId;
     }
 }
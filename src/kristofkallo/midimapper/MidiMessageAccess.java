@@ -0,0 +1,60 @@
+package kristofkallo.midimapper;
+
+import javax.sound.midi.MidiMessage;
+import java.lang.reflect.Field;
+
+/**
+ * Gives read access to the internal buffer of a {@link MidiMessage}.
+ * {@link MidiMessage#getMessage()} returns a copy of the buffer, which would
+ * produce garbage on the MIDI callback thread for every message.
+ *
+ * The buffer can be longer than the message, so only the first
+ * {@link MidiMessage#getLength()} bytes are valid. It must not be modified.
+ * If the runtime does not allow access to the buffer, the copy is returned instead.
+ * On Java 9 and later, the access is allowed by the Add-Opens entry of the
+ * manifest of the jar when it is started with java -jar.
+ */
+final class MidiMessageAccess {
+    private static final Field DATA_FIELD = findDataField();
+
+    private MidiMessageAccess() {
+    }
+
+    private static Field findDataField() {
+        try {
+            Field field = MidiMessage.class.getDeclaredField("data");
+            field.setAccessible(true);
+            return field;
+        } catch (NoSuchFieldException | RuntimeException e) {
+            // E.g. the module system denies access on newer runtimes, unless the jar is
+            // started with java -jar, whose manifest opens the package
+            System.err.println("Direct access to MIDI message buffers is not available, messages will be copied. " +
+                    "Start the program with java -jar, or add --add-opens java.desktop/javax.sound.midi=ALL-UNNAMED");
+            return null;
+        }
+    }
+
+    /**
+     * @return Whether the buffers are read directly, otherwise they are copied.
+     */
+    static boolean isDirect() {
+        return DATA_FIELD != null;
+    }
+
+    static byte[] bufferOf(MidiMessage message) {
+        if (message instanceof RawMidiMessage) {
+            return ((RawMidiMessage) message).getBuffer();
+        }
+        if (DATA_FIELD != null) {
+            try {
+                byte[] data = (byte[]) DATA_FIELD.get(message);
+                if (data != null) {
+                    return data;
+                }
+            } catch (IllegalAccessException e) {
+                // Fall back to the copy
+            }
+        }
+        return message.getMessage();
+    }
+}
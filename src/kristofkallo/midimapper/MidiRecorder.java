@@ -0,0 +1,179 @@
+package kristofkallo.midimapper;
+
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.Receiver;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Records the incoming MIDI messages of both directions into a binary log,
+ * which {@link MidiReplayer} can play back without the devices.
+ *
+ * The receivers returned by {@link #tee(LatencyStats.Direction, Receiver)} are put
+ * in front of the receivers of the inputs. They only copy the message into a
+ * {@link MidiRingBuffer} of their direction and pass it on, and a writer thread
+ * appends the queued messages to the file through a buffered file channel.
+ * If the writer falls behind until a ring buffer is full, the oldest messages
+ * of that direction are dropped from the log, never held up.
+ *
+ * The file starts with a header: the magic number "M4RL", the version, and the
+ * wall-clock time the recording started in milliseconds. Each message follows
+ * as a record: the nanoseconds since the start, the direction as the ordinal of
+ * {@link LatencyStats.Direction}, the length as a short, and the raw bytes.
+ * The numbers are big-endian. The records of a direction are in the order they
+ * arrived, but the two directions may be slightly interleaved.
+ */
+public class MidiRecorder {
+    static final int MAGIC = 0x4d34524c; // "M4RL"
+    static final int VERSION = 1;
+    static final int HEADER_LENGTH = 16;
+    static final int RECORD_HEADER_LENGTH = 11;
+
+    private static final long IDLE_PARK_NANOS = 1000000;
+
+    private final FileChannel channel;
+    private final ByteBuffer buffer;
+    private final long startNanos = System.nanoTime();
+    // Indexed by the ordinal of the direction
+    private final MidiRingBuffer[] ringBuffers;
+    private final Thread writer;
+    private volatile boolean running = true;
+    private volatile boolean writerIdle;
+
+    // Written by the writer thread only
+    private volatile long recordCount;
+    private volatile long byteCount;
+
+    /**
+     * Creates the log file, replacing an existing one, and starts the writer thread.
+     *
+     * @param pathname The log file.
+     * @param capacity The number of messages each direction can queue, at least 2.
+     * @param maxMessageLength The longest message that is recorded.
+     */
+    public MidiRecorder(String pathname, int capacity, int maxMessageLength) throws IOException {
+        // Before the file is opened, as an invalid capacity is rejected here
+        LatencyStats.Direction[] directions = LatencyStats.Direction.values();
+        ringBuffers = new MidiRingBuffer[directions.length];
+        for (int i = 0; i < directions.length; i++) {
+            ringBuffers[i] = new MidiRingBuffer(capacity, maxMessageLength, OverflowPolicy.DROP_OLDEST);
+        }
+        channel = FileChannel.open(Paths.get(pathname),
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        buffer = ByteBuffer.allocateDirect(Math.max(64 * 1024, RECORD_HEADER_LENGTH + maxMessageLength));
+        buffer.putInt(MAGIC).putInt(VERSION).putLong(System.currentTimeMillis());
+        writer = new Thread(this::runWriter, "MIDI recorder");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * @param direction The direction of the messages of the input.
+     * @param receiver The receiver of the input, which gets every message.
+     * @return The receiver to set on the transmitter of the input.
+     *         Only one thread may send to it at a time.
+     */
+    public Receiver tee(LatencyStats.Direction direction, Receiver receiver) {
+        MidiRingBuffer ringBuffer = ringBuffers[direction.ordinal()];
+        return new Receiver() {
+            @Override
+            public void send(MidiMessage message, long timeStamp) {
+                if (running) {
+                    ringBuffer.offer(MidiMessageAccess.bufferOf(message), message.getLength(), timeStamp, System.nanoTime());
+                    if (writerIdle) {
+                        LockSupport.unpark(writer);
+                    }
+                }
+                receiver.send(message, timeStamp);
+            }
+
+            @Override
+            public void close() {
+                receiver.close();
+            }
+        };
+    }
+
+    private void runWriter() {
+        RawMidiMessage message = new RawMidiMessage(64);
+        try {
+            while (running) {
+                boolean written = false;
+                for (int i = 0; i < ringBuffers.length; i++) {
+                    while (ringBuffers[i].poll(message)) {
+                        write(i, message);
+                        written = true;
+                    }
+                }
+                if (!written) {
+                    // Nothing to do, put the buffered records into the file
+                    flush();
+                    writerIdle = true;
+                    LockSupport.parkNanos(IDLE_PARK_NANOS);
+                    writerIdle = false;
+                }
+            }
+            // Drain what is left
+            for (int i = 0; i < ringBuffers.length; i++) {
+                while (ringBuffers[i].poll(message)) {
+                    write(i, message);
+                }
+            }
+            flush();
+        } catch (IOException e) {
+            System.err.println("Recording stopped, the log could not be written");
+            e.printStackTrace();
+        }
+    }
+
+    private void write(int direction, RawMidiMessage message) throws IOException {
+        int length = message.getLength();
+        if (buffer.remaining() < RECORD_HEADER_LENGTH + length) {
+            flush();
+        }
+        buffer.putLong(message.getArrivalNanos() - startNanos);
+        buffer.put((byte) direction);
+        buffer.putShort((short) length);
+        buffer.put(message.getBuffer(), 0, length);
+        recordCount++;
+        byteCount += length;
+    }
+
+    private void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Stops recording, writes the queued messages and closes the file.
+     */
+    public void close() {
+        running = false;
+        LockSupport.unpark(writer);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public String getStatistics() {
+        long dropped = 0;
+        for (MidiRingBuffer ringBuffer : ringBuffers) {
+            dropped += ringBuffer.getDroppedCount() + ringBuffer.getOversizedCount();
+        }
+        return String.format("Recorder: %d messages, %d bytes recorded, %d dropped", recordCount, byteCount, dropped);
+    }
+}
@@ -0,0 +1,153 @@
+package kristofkallo.midimapper;
+
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.Receiver;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Plays back a log written by {@link MidiRecorder} into the receivers of the
+ * inputs, as if the messages came from the devices, so that e.g. a scene recall
+ * captured from the console can be reproduced without it.
+ *
+ * The messages are sent at the recorded pace, faster by a factor, or as fast as
+ * the receivers take them. Each message is stamped with the time it was sent
+ * as its arrival, so the latency recorded by the outputs is the time spent in
+ * the program. The lag is how late a message was sent compared to its schedule.
+ *
+ * Run it from the project directory with the log file and optionally the speed
+ * factor (0 for as fast as possible) as arguments. It maps the messages with
+ * the map and sends them into outputs that discard them, then reports the
+ * throughput and the latency.
+ */
+public class MidiReplayer {
+    private final String pathname;
+
+    private long messageCount;
+    private long byteCount;
+    private long elapsedNanos;
+    private final LatencyHistogram lag = new LatencyHistogram();
+
+    /**
+     * @param pathname The log file.
+     */
+    public MidiReplayer(String pathname) {
+        this.pathname = pathname;
+    }
+
+    /**
+     * Plays back the whole log, and returns when the last message has been sent.
+     *
+     * @param fromConsole The receiver of the console's messages.
+     * @param fromDAW The receiver of the DAW's messages.
+     * @param speed How many times faster than recorded to play, 0 or less for as fast as possible.
+     */
+    public void replay(Receiver fromConsole, Receiver fromDAW, double speed) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(pathname), StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.remaining() < MidiRecorder.HEADER_LENGTH ||
+                    buffer.getInt() != MidiRecorder.MAGIC || buffer.getInt() != MidiRecorder.VERSION) {
+                throw new IOException(pathname + " is not a MIDI log");
+            }
+            // The wall-clock time of the recording
+            buffer.getLong();
+            replay(buffer, fromConsole, fromDAW, speed);
+        }
+    }
+
+    private void replay(ByteBuffer buffer, Receiver fromConsole, Receiver fromDAW, double speed) throws IOException {
+        Receiver[] receivers = new Receiver[LatencyStats.Direction.values().length];
+        receivers[LatencyStats.Direction.CONSOLE_TO_DAW.ordinal()] = fromConsole;
+        receivers[LatencyStats.Direction.DAW_TO_CONSOLE.ordinal()] = fromDAW;
+        RawMidiMessage message = new RawMidiMessage(64);
+        byte[] data = new byte[64];
+        long start = System.nanoTime();
+        long firstRecorded = -1;
+        while (buffer.remaining() >= MidiRecorder.RECORD_HEADER_LENGTH) {
+            long recorded = buffer.getLong();
+            int direction = buffer.get();
+            int length = buffer.getShort() & 0xffff;
+            if (direction < 0 || direction >= receivers.length || buffer.remaining() < length) {
+                throw new IOException(pathname + " is corrupt after " + messageCount + " messages");
+            }
+            if (data.length < length) {
+                data = new byte[length];
+            }
+            buffer.get(data, 0, length);
+            if (firstRecorded < 0) {
+                firstRecorded = recorded;
+            }
+            long now = System.nanoTime();
+            if (speed > 0) {
+                long due = start + (long) ((recorded - firstRecorded) / speed);
+                if (due - now > 0) {
+                    LockSupport.parkNanos(due - now);
+                    now = System.nanoTime();
+                }
+                lag.record(Math.max(0, now - due));
+            }
+            message.setMessage(data, 0, length);
+            message.setTimeStamp(-1);
+            message.setArrivalNanos(now);
+            receivers[direction].send(message, -1);
+            messageCount++;
+            byteCount += length;
+        }
+        elapsedNanos = System.nanoTime() - start;
+    }
+
+    /**
+     * @return Human-readable throughput of the last replay, and the lag if it was paced.
+     */
+    public String getReport() {
+        double seconds = Math.max(elapsedNanos, 1) / 1e9;
+        String report = String.format("Replayed %d messages, %d bytes in %.1f ms: %.0f messages/s, %.0f bytes/s",
+                messageCount, byteCount, elapsedNanos / 1e6, messageCount / seconds, byteCount / seconds);
+        if (lag.getCount() > 0) {
+            report += String.format("%nLag p50 %.3f ms, p99 %.3f ms, max %.3f ms",
+                    lag.getValueAtPercentile(50) / 1e6, lag.getValueAtPercentile(99) / 1e6, lag.getMax() / 1e6);
+        }
+        return report;
+    }
+
+    /**
+     * Discards the messages sent by the outputs.
+     */
+    private static class NullReceiver implements Receiver {
+        @Override
+        public void send(MidiMessage message, long timeStamp) {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: MidiReplayer <log file> [speed, 0 for as fast as possible] [map file]");
+            System.exit(1);
+        }
+        double speed = args.length > 1 ? Double.parseDouble(args[1]) : 1;
+        MidiMap midiMap = new MidiMap(args.length > 2 ? args[2] : App.MAP_PATHNAME, true);
+        LatencyStats latencyStats = new LatencyStats();
+        ConsoleState consoleState = new ConsoleState();
+        consoleState.setMidiMap(midiMap);
+        M400Receiver fromConsole = new M400Receiver(
+                new NrpnOutput(new NullReceiver(), false, 1000, latencyStats), midiMap, consoleState, null);
+        LoopMidiReceiver fromDAW = new LoopMidiReceiver(
+                new SysexOutput(new NullReceiver(), latencyStats), midiMap, consoleState, null);
+
+        MidiReplayer replayer = new MidiReplayer(args[0]);
+        replayer.replay(fromConsole, fromDAW, speed);
+        System.out.println(replayer.getReport());
+        for (String line : latencyStats.getReport()) {
+            System.out.println(line);
+        }
+    }
+}
@@ -0,0 +1,266 @@
+package kristofkallo.midimapper;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A preallocated, lock-free queue of raw MIDI messages for a single producer
+ * and a single consumer.
+ *
+ * Every slot has a sequence number that tells its state for a given position:
+ * it equals the position if the slot is free to be written, the position + 1 if
+ * the message of the position is published, and {@link #CLAIMED} while a thread
+ * copies the message out or rewrites it. When the queue is full, the producer
+ * may take published slots back according to the {@link OverflowPolicy},
+ * and the consumer skips the positions that have been dropped this way.
+ */
+public class MidiRingBuffer {
+    private static final long CLAIMED = Long.MIN_VALUE;
+    private static final long BLOCK_PARK_NANOS = 50000;
+
+    private final int capacity;
+    private final int mask;
+    private final int slotSize;
+    private final OverflowPolicy overflowPolicy;
+
+    private final byte[] data;
+    private final int[] lengths;
+    private final long[] timeStamps;
+    private final long[] arrivalNanos;
+    private final AtomicLongArray sequences;
+
+    // Owned by the producer and the consumer respectively
+    private long head;
+    private long tail;
+    // Published copies of the positions, for the statistics
+    private volatile long headPosition;
+    private volatile long tailPosition;
+
+    // Written by the producer only
+    private volatile long offeredCount;
+    private volatile long overflowCount;
+    private volatile long droppedCount;
+    private volatile long coalescedCount;
+    private volatile long oversizedCount;
+    private volatile int maxDepth;
+
+    /**
+     * @param capacity The number of slots, rounded up to a power of two. With a single
+     *                 slot, a published slot would look free for the next round, so at least 2.
+     * @param slotSize The maximum length of a message, longer ones are rejected.
+     * @param overflowPolicy What to do when the queue is full.
+     */
+    public MidiRingBuffer(int capacity, int slotSize, OverflowPolicy overflowPolicy) {
+        if (capacity < 2 || capacity > 1 << 24) {
+            throw new IllegalArgumentException("capacity out of range");
+        }
+        int roundedCapacity = Integer.highestOneBit(capacity);
+        if (roundedCapacity < capacity) {
+            roundedCapacity <<= 1;
+        }
+        this.capacity = roundedCapacity;
+        this.mask = roundedCapacity - 1;
+        this.slotSize = slotSize;
+        this.overflowPolicy = overflowPolicy;
+        data = new byte[roundedCapacity * slotSize];
+        lengths = new int[roundedCapacity];
+        timeStamps = new long[roundedCapacity];
+        arrivalNanos = new long[roundedCapacity];
+        sequences = new AtomicLongArray(roundedCapacity);
+        for (int i = 0; i < roundedCapacity; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    /**
+     * Puts a message into the queue. Must only be called by the producer thread.
+     *
+     * @return Whether the message has been queued, or merged into the newest one.
+     */
+    public boolean offer(byte[] message, int length, long timeStamp, long arrival) {
+        offeredCount++;
+        if (length > slotSize) {
+            oversizedCount++;
+            return false;
+        }
+        boolean overflown = false;
+        while (true) {
+            int slot = (int) (head & mask);
+            long sequence = sequences.get(slot);
+            if (sequence == head) {
+                write(slot, message, length, timeStamp, arrival);
+                sequences.set(slot, head + 1);
+                head++;
+                headPosition = head;
+                int depth = (int) Math.min(capacity, head - tailPosition);
+                if (depth > maxDepth) {
+                    maxDepth = depth;
+                }
+                return true;
+            }
+            if (sequence == CLAIMED) {
+                // The consumer is copying the oldest message out, this is quick
+                Thread.yield();
+                continue;
+            }
+            // Full, the slot holds the oldest message
+            if (!overflown) {
+                overflown = true;
+                overflowCount++;
+            }
+            switch (overflowPolicy) {
+                case BLOCK:
+                    LockSupport.parkNanos(BLOCK_PARK_NANOS);
+                    break;
+                case COALESCE:
+                    if (replaceNewest(message, length, timeStamp, arrival)) {
+                        coalescedCount++;
+                        return true;
+                    }
+                    dropOldest(slot, sequence);
+                    break;
+                case DROP_OLDEST:
+                    dropOldest(slot, sequence);
+                    break;
+            }
+        }
+    }
+
+    private void dropOldest(int slot, long sequence) {
+        // Make the slot free for the head position, the consumer will skip it
+        if (sequences.compareAndSet(slot, sequence, head)) {
+            droppedCount++;
+        }
+    }
+
+    private boolean replaceNewest(byte[] message, int length, long timeStamp, long arrival) {
+        if (head == 0) {
+            return false;
+        }
+        int slot = (int) ((head - 1) & mask);
+        if (!sequences.compareAndSet(slot, head, CLAIMED)) {
+            // Already consumed, or being consumed
+            return false;
+        }
+        if (!sameParameter(slot, message, length)) {
+            sequences.set(slot, head);
+            return false;
+        }
+        write(slot, message, length, timeStamp, arrival);
+        sequences.set(slot, head);
+        return true;
+    }
+
+    /**
+     * Whether the queued message addresses the same parameter, so that the new one
+     * supersedes it: a Data Set message to the same address, or a short message
+     * with the same status and first data byte (e.g. the same controller).
+     */
+    private boolean sameParameter(int slot, byte[] message, int length) {
+        if (lengths[slot] != length || length == 0) {
+            return false;
+        }
+        int keyLength;
+        if (M400ByteCode.SYS_EX_STATUS_BYTE.is(message[0])) {
+            if (length <= M400ByteCode.DATA_OFFSET || !M400ByteCode.DATA_SET_COMMAND_ID.is(message[6])) {
+                return false;
+            }
+            keyLength = M400ByteCode.DATA_OFFSET;
+        } else {
+            keyLength = Math.min(2, length);
+        }
+        int offset = slot * slotSize;
+        for (int i = 0; i < keyLength; i++) {
+            if (data[offset + i] != message[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void write(int slot, byte[] message, int length, long timeStamp, long arrival) {
+        System.arraycopy(message, 0, data, slot * slotSize, length);
+        lengths[slot] = length;
+        timeStamps[slot] = timeStamp;
+        arrivalNanos[slot] = arrival;
+    }
+
+    /**
+     * Takes the oldest message out of the queue. Must only be called by the consumer thread.
+     *
+     * @param target The message to copy the oldest message into.
+     * @return Whether there was a message.
+     */
+    public boolean poll(RawMidiMessage target) {
+        while (true) {
+            int slot = (int) (tail & mask);
+            long sequence = sequences.get(slot);
+            if (sequence == tail + 1) {
+                if (!sequences.compareAndSet(slot, sequence, CLAIMED)) {
+                    // The producer has just taken it back
+                    continue;
+                }
+                target.setMessage(data, slot * slotSize, lengths[slot]);
+                target.setTimeStamp(timeStamps[slot]);
+                target.setArrivalNanos(arrivalNanos[slot]);
+                sequences.set(slot, tail + capacity);
+                tail++;
+                tailPosition = tail;
+                return true;
+            }
+            if (sequence == CLAIMED || sequence <= tail) {
+                // Empty, or the producer is rewriting the only message
+                return false;
+            }
+            // Dropped by the producer
+            tail++;
+            tailPosition = tail;
+        }
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    /**
+     * @return The number of occupied slots.
+     */
+    public int getDepth() {
+        // Dropped positions the consumer has not skipped yet are also counted by the difference
+        return (int) Math.max(0, Math.min(capacity, headPosition - tailPosition));
+    }
+
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+
+    public long getOfferedCount() {
+        return offeredCount;
+    }
+
+    /**
+     * @return The number of messages that found the queue full.
+     */
+    public long getOverflowCount() {
+        return overflowCount;
+    }
+
+    public long getDroppedCount() {
+        return droppedCount;
+    }
+
+    public long getCoalescedCount() {
+        return coalescedCount;
+    }
+
+    /**
+     * @return The number of messages rejected because they were longer than a slot.
+     */
+    public long getOversizedCount() {
+        return oversizedCount;
+    }
+}
@@ -0,0 +1,21 @@
+package kristofkallo.midimapper;
+
+/**
+ * Shows the messages of the application to the user: in the tray, see
+ * {@link TrayMenu}, or on the console when running headless, see {@link ConsoleNotifier}.
+ * It must not depend on AWT, so that the headless mode does not load it.
+ */
+public interface Notifier {
+    enum MessageType {
+        INFO,
+        WARNING,
+        ERROR
+    }
+
+    void displayMessage(String message, MessageType type);
+
+    /**
+     * Removes the notifier, e.g. the tray icon, when the application quits.
+     */
+    void destroy();
+}
@@ -0,0 +1,131 @@
+package kristofkallo.midimapper;
+
+import kristofkallo.midimapper.parameter.Parameter;
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.Receiver;
+import javax.sound.midi.ShortMessage;
+
+/**
+ * Sends parameter values to the DAW as NRPN messages.
+ * CC 99 selects the channel, CC 98 the parameter,
+ * then CC 6 and CC 38 carry the MSB and the LSB of the 14-bit value.
+ *
+ * In running status mode, the parts that have not changed since the previous
+ * message are left out: the channel and parameter selection if the same parameter
+ * changes again, and the MSB if only the LSB differs. In case the receiving end
+ * loses track, everything is sent again after the resync interval.
+ */
+public class NrpnOutput implements ParameterOutput {
+    private final Receiver receiver;
+    private final boolean runningStatus;
+    private final long resyncIntervalNanos;
+    private final LatencyStats latencyStats;
+
+    // The last sent parts, -1 if unknown
+    private int lastChannelNrpn = -1;
+    private int lastParamNrpn = -1;
+    private int lastValueMSB = -1;
+    private long lastResyncNanos;
+
+    private long sentCount;
+    private long skippedCount;
+
+    /**
+     * Reused for every outgoing message, so that nothing is allocated per message.
+     * This is safe because the receiver consumes the message before send returns.
+     */
+    private final ShortMessage outMsg = new ShortMessage();
+
+    public NrpnOutput(Receiver receiver) {
+        this(receiver, false, 0, null);
+    }
+
+    /**
+     * @param runningStatus Whether to leave out the unchanged parts.
+     * @param resyncIntervalMillis In running status mode, the time after which
+     *                             every part is sent again.
+     * @param latencyStats Where to record the latency of the messages, null if not needed.
+     */
+    public NrpnOutput(Receiver receiver, boolean runningStatus, long resyncIntervalMillis, LatencyStats latencyStats) {
+        this.receiver = receiver;
+        this.runningStatus = runningStatus;
+        this.resyncIntervalNanos = resyncIntervalMillis * 1000000;
+        this.latencyStats = latencyStats;
+    }
+
+    @Override
+    public synchronized void send(Parameter parameter, int value, long timeStamp, long arrivalNanos) throws InvalidMidiDataException {
+        int channelNrpn = parameter.getChannel().getAddress().getNrpn();
+        int paramNrpn = parameter.getAddress().getNrpn();
+        int valueMSB = (value >> 7) & 127;
+        boolean full = !runningStatus;
+        if (runningStatus) {
+            long now = System.nanoTime();
+            if (now - lastResyncNanos >= resyncIntervalNanos) {
+                full = true;
+                lastResyncNanos = now;
+            }
+        }
+        // A new selection invalidates the parts after it
+        boolean channelChanged = full || channelNrpn != lastChannelNrpn;
+        boolean paramChanged = channelChanged || paramNrpn != lastParamNrpn;
+        boolean msbChanged = paramChanged || valueMSB != lastValueMSB;
+        if (channelChanged) {
+            sendControlChange(99, channelNrpn, timeStamp);
+        } else {
+            skippedCount++;
+        }
+        if (paramChanged) {
+            sendControlChange(98, paramNrpn, timeStamp);
+        } else {
+            skippedCount++;
+        }
+        if (msbChanged) {
+            sendControlChange(6, valueMSB, timeStamp);
+        } else {
+            skippedCount++;
+        }
+        sendControlChange(38, value & 127, timeStamp);
+        if (latencyStats != null) {
+            latencyStats.record(LatencyStats.Direction.CONSOLE_TO_DAW, parameter, arrivalNanos);
+        }
+        lastChannelNrpn = channelNrpn;
+        lastParamNrpn = paramNrpn;
+        lastValueMSB = valueMSB;
+    }
+
+    private void sendControlChange(int controller, int value, long timeStamp) throws InvalidMidiDataException {
+        outMsg.setMessage(ShortMessage.CONTROL_CHANGE, 0, controller, value);
+        receiver.send(outMsg, timeStamp);
+        sentCount++;
+    }
+
+    /**
+     * Forgets the last sent parts, so that the next value is sent in full,
+     * e.g. after the port has been reopened and the parts sent meanwhile were lost.
+     */
+    public synchronized void reset() {
+        lastChannelNrpn = -1;
+        lastParamNrpn = -1;
+        lastValueMSB = -1;
+    }
+
+    /**
+     * @return The number of control change messages sent.
+     */
+    public synchronized long getSentCount() {
+        return sentCount;
+    }
+
+    /**
+     * @return The number of control change messages left out thanks to running status.
+     */
+    public synchronized long getSkippedCount() {
+        return skippedCount;
+    }
+
+    public synchronized String getStatistics() {
+        return String.format("NRPN out: %d CC sent, %d CC skipped", sentCount, skippedCount);
+    }
+}
@@ -0,0 +1,20 @@
+package kristofkallo.midimapper;
+
+/**
+ * What to do with an incoming message when a queue is full.
+ */
+public enum OverflowPolicy {
+    /**
+     * Wait until there is room, which stalls the sender.
+     */
+    BLOCK,
+    /**
+     * Discard the oldest queued message to make room.
+     */
+    DROP_OLDEST,
+    /**
+     * Replace the newest queued message if it addresses the same parameter,
+     * otherwise discard the oldest one.
+     */
+    COALESCE
+}
@@ -0,0 +1,139 @@
+package kristofkallo.midimapper;
+
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.Receiver;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Limits the rate of the messages sent to a device that can only process
+ * so many of them, in bytes and in messages per second.
+ *
+ * Each limit is a token bucket: it is refilled at the configured rate up to a
+ * burst size, and every message takes its cost from it. Sending blocks until
+ * neither bucket is in debt, so a message larger than the burst size still
+ * gets through. It is meant to be called from the sender thread of a
+ * coalescing stage, so while it blocks, the values waiting upstream are
+ * replaced by newer ones instead of piling up.
+ */
+public class PacedReceiver implements Receiver {
+    private final String name;
+    private final Receiver receiver;
+    private final double bytesPerNano;
+    private final double messagesPerNano;
+    private final double burstBytes;
+    private final double burstMessages;
+
+    // Held while waiting and sending, so the messages keep their order
+    private final Object pacingLock = new Object();
+    private double byteTokens;
+    private double messageTokens;
+    private long lastRefill = System.nanoTime();
+
+    // Updated atomically, so the statistics can be read while a sender waits
+    private final AtomicLong messageCount = new AtomicLong();
+    private final AtomicLong byteCount = new AtomicLong();
+    private final AtomicLong delayedCount = new AtomicLong();
+    private final AtomicLong delayNanos = new AtomicLong();
+    private final AtomicInteger waiting = new AtomicInteger();
+
+    /**
+     * @param name Name of the device for the statistics.
+     * @param receiver The receiver of the device.
+     * @param bytesPerSecond The maximum number of bytes sent per second, 0 for no limit.
+     * @param messagesPerSecond The maximum number of messages sent per second, 0 for no limit.
+     * @param burstBytes The number of bytes that may be sent at once after an idle period.
+     * @param burstMessages The number of messages that may be sent at once after an idle period.
+     */
+    public PacedReceiver(String name, Receiver receiver, double bytesPerSecond, double messagesPerSecond,
+                         int burstBytes, int burstMessages) {
+        this.name = name;
+        this.receiver = receiver;
+        this.bytesPerNano = bytesPerSecond / TimeUnit.SECONDS.toNanos(1);
+        this.messagesPerNano = messagesPerSecond / TimeUnit.SECONDS.toNanos(1);
+        this.burstBytes = Math.max(burstBytes, 1);
+        this.burstMessages = Math.max(burstMessages, 1);
+        byteTokens = this.burstBytes;
+        messageTokens = this.burstMessages;
+    }
+
+    @Override
+    public void send(MidiMessage message, long timeStamp) {
+        waiting.incrementAndGet();
+        try {
+            synchronized (pacingLock) {
+                long wait = acquire(message.getLength());
+                if (wait > 0) {
+                    delayedCount.incrementAndGet();
+                    delayNanos.addAndGet(wait);
+                }
+                receiver.send(message, timeStamp);
+            }
+        } finally {
+            waiting.decrementAndGet();
+        }
+    }
+
+    /**
+     * Waits until neither bucket is in debt, then takes the cost of the message.
+     * Must be called with the lock held.
+     *
+     * @return How long it waited, 0 if it did not have to wait.
+     */
+    private long acquire(int length) {
+        long start = 0;
+        while (true) {
+            refill();
+            long wait = 0;
+            if (bytesPerNano > 0 && byteTokens < 0) {
+                wait = (long) Math.ceil(-byteTokens / bytesPerNano);
+            }
+            if (messagesPerNano > 0 && messageTokens < 0) {
+                wait = Math.max(wait, (long) Math.ceil(-messageTokens / messagesPerNano));
+            }
+            if (wait <= 0) {
+                break;
+            }
+            if (start == 0) {
+                start = System.nanoTime();
+            }
+            LockSupport.parkNanos(wait);
+        }
+        if (bytesPerNano > 0) {
+            byteTokens -= length;
+        }
+        if (messagesPerNano > 0) {
+            messageTokens--;
+        }
+        messageCount.incrementAndGet();
+        byteCount.addAndGet(length);
+        return start == 0 ? 0 : System.nanoTime() - start;
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        long elapsed = now - lastRefill;
+        lastRefill = now;
+        byteTokens = Math.min(burstBytes, byteTokens + elapsed * bytesPerNano);
+        messageTokens = Math.min(burstMessages, messageTokens + elapsed * messagesPerNano);
+    }
+
+    @Override
+    public void close() {
+        receiver.close();
+    }
+
+    /**
+     * @return The number of messages waiting to be sent, including the one being sent.
+     */
+    public int getWaitingCount() {
+        return waiting.get();
+    }
+
+    public String getStatistics() {
+        return String.format("Pacing to %s: %d messages, %d bytes, %d delayed by %.0f ms in total, %d waiting",
+                name, messageCount.get(), byteCount.get(), delayedCount.get(), delayNanos.get() / 1e6, waiting.get());
+    }
+}
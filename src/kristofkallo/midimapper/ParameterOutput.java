@@ -0,0 +1,21 @@
+package kristofkallo.midimapper;
+
+import kristofkallo.midimapper.parameter.Parameter;
+
+import javax.sound.midi.InvalidMidiDataException;
+
+/**
+ * Destination of mapped parameter values. Implementations encode the value
+ * into MIDI messages for one side of the system, or forward it to another output.
+ */
+public interface ParameterOutput {
+    /**
+     * @param parameter The parameter whose value has changed.
+     * @param value The value already mapped to the destination's representation,
+     *              i.e. a 14-bit DAW value or a console value.
+     * @param timeStamp The time stamp of the message that carried the value.
+     * @param arrivalNanos The value of {@link System#nanoTime()} when the message that
+     *                     carried the value arrived in the program.
+     */
+    void send(Parameter parameter, int value, long timeStamp, long arrivalNanos) throws InvalidMidiDataException;
+}
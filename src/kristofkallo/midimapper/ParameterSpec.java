@@ -0,0 +1,37 @@
+package kristofkallo.midimapper;
+
+import kristofkallo.midimapper.parameter.Parameter;
+
+/**
+ * The attributes of a parameter as defined in the map, collected while the
+ * map is streamed until its scale can be resolved.
+ */
+class ParameterSpec {
+    final Channel channel;
+    final String name;
+    Address address;
+    Scale scale;
+    int bytes;
+    boolean signed;
+    double min;
+    double max;
+    double dMin;
+    double dMax;
+    double exp;
+    double thresh;
+    double base;
+    double coeff;
+    /**
+     * The resolved scale points, or null if the parameter has no scale definition.
+     */
+    ScalePoints scalePoints;
+    /**
+     * The parameter created from this spec, or null if not created yet.
+     */
+    Parameter parameter;
+
+    ParameterSpec(Channel channel, String name) {
+        this.channel = channel;
+        this.name = name;
+    }
+}
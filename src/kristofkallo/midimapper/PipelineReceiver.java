@@ -0,0 +1,103 @@
+package kristofkallo.midimapper;
+
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.Receiver;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Moves the processing of incoming messages off the MIDI driver's callback thread.
+ *
+ * The callback only copies the raw bytes and the time stamps into a {@link MidiRingBuffer},
+ * and a dedicated worker thread passes them on to the actual receiver, which does the
+ * decoding, mapping, encoding and sending. This way a stalling output does not hold up
+ * the driver, and the overflow policy of the buffer decides what is lost if it goes on for long.
+ */
+public class PipelineReceiver implements Receiver {
+    private static final long IDLE_PARK_NANOS = 1000000;
+
+    private final String name;
+    private final Receiver receiver;
+    private final MidiRingBuffer ringBuffer;
+    private final Thread worker;
+    private volatile boolean running = true;
+    private volatile boolean workerIdle;
+
+    /**
+     * @param name Name of the direction for the worker thread and the statistics.
+     * @param receiver The receiver that processes the messages on the worker thread.
+     * @param capacity The number of messages the buffer can hold, at least 2.
+     * @param maxMessageLength The longest message that is accepted.
+     * @param overflowPolicy What to do with incoming messages when the buffer is full.
+     */
+    public PipelineReceiver(String name, Receiver receiver, int capacity, int maxMessageLength, OverflowPolicy overflowPolicy) {
+        this.name = name;
+        this.receiver = receiver;
+        this.ringBuffer = new MidiRingBuffer(capacity, maxMessageLength, overflowPolicy);
+        worker = new Thread(this::runWorker, "Pipeline worker " + name);
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    @Override
+    public void send(MidiMessage message, long timeStamp) {
+        long arrival = System.nanoTime();
+        if (!running) {
+            return;
+        }
+        ringBuffer.offer(MidiMessageAccess.bufferOf(message), message.getLength(), timeStamp, arrival);
+        if (workerIdle) {
+            LockSupport.unpark(worker);
+        }
+    }
+
+    private void runWorker() {
+        RawMidiMessage message = new RawMidiMessage(64);
+        while (running) {
+            if (!ringBuffer.poll(message)) {
+                workerIdle = true;
+                // Check again, the producer may have published before it saw the flag
+                if (!ringBuffer.poll(message)) {
+                    LockSupport.parkNanos(IDLE_PARK_NANOS);
+                    workerIdle = false;
+                    continue;
+                }
+                workerIdle = false;
+            }
+            try {
+                receiver.send(message, message.getTimeStamp());
+            } catch (RuntimeException e) {
+                // Keep the worker alive whatever happens to a single message
+                e.printStackTrace();
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        LockSupport.unpark(worker);
+        receiver.close();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public MidiRingBuffer getRingBuffer() {
+        return ringBuffer;
+    }
+
+    public String getStatistics() {
+        return String.format("%s: %d in, depth %d (max %d of %d), %d overflows, %d dropped, %d coalesced, %d too long (%s)",
+                name,
+                ringBuffer.getOfferedCount(),
+                ringBuffer.getDepth(),
+                ringBuffer.getMaxDepth(),
+                ringBuffer.getCapacity(),
+                ringBuffer.getOverflowCount(),
+                ringBuffer.getDroppedCount(),
+                ringBuffer.getCoalescedCount(),
+                ringBuffer.getOversizedCount(),
+                ringBuffer.getOverflowPolicy());
+    }
+}
@@ -0,0 +1,45 @@
+package kristofkallo.midimapper;
+
+import javax.sound.midi.Receiver;
+import javax.sound.midi.Transmitter;
+
+/**
+ * The open input and output port of a device, as returned by a {@link DeviceProvider}.
+ */
+public class PortPair {
+    private final String name;
+    private final Transmitter input;
+    private final Receiver output;
+    private final Runnable closer;
+
+    /**
+     * @param name Name of the device for the messages.
+     * @param input Transmits the messages of the device.
+     * @param output Receives the messages to the device.
+     * @param closer Closes the ports, null if there is nothing to close.
+     */
+    public PortPair(String name, Transmitter input, Receiver output, Runnable closer) {
+        this.name = name;
+        this.input = input;
+        this.output = output;
+        this.closer = closer;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Transmitter getInput() {
+        return input;
+    }
+
+    public Receiver getOutput() {
+        return output;
+    }
+
+    public void close() {
+        if (closer != null) {
+            closer.run();
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package kristofkallo.midimapper;
+
+import javax.sound.midi.MidiMessage;
+
+/**
+ * A mutable MIDI message of any kind, which can be refilled with new bytes
+ * without allocating, as long as its buffer is large enough.
+ * It also carries the time stamp it was sent with, and records when it arrived in the program.
+ */
+public class RawMidiMessage extends MidiMessage {
+    private long timeStamp = -1;
+    private long arrivalNanos;
+
+    /**
+     * @param capacity The initial size of the buffer.
+     */
+    public RawMidiMessage(int capacity) {
+        super(new byte[capacity]);
+        length = 0;
+    }
+
+    /**
+     * Copies a range of bytes into the message, replacing its content.
+     */
+    public void setMessage(byte[] source, int offset, int length) {
+        if (data.length < length) {
+            data = new byte[length];
+        }
+        System.arraycopy(source, offset, data, 0, length);
+        this.length = length;
+    }
+
+    /**
+     * The internal buffer of the message, see {@link MidiMessageAccess}.
+     */
+    byte[] getBuffer() {
+        return data;
+    }
+
+    /**
+     * @return The time stamp the message was sent with, -1 if none.
+     */
+    public long getTimeStamp() {
+        return timeStamp;
+    }
+
+    public void setTimeStamp(long timeStamp) {
+        this.timeStamp = timeStamp;
+    }
+
+    /**
+     * @return The value of {@link System#nanoTime()} when the message arrived.
+     */
+    public long getArrivalNanos() {
+        return arrivalNanos;
+    }
+
+    public void setArrivalNanos(long arrivalNanos) {
+        this.arrivalNanos = arrivalNanos;
+    }
+
+    @Override
+    public Object clone() {
+        RawMidiMessage copy = new RawMidiMessage(length);
+        copy.setMessage(data, 0, length);
+        copy.timeStamp = timeStamp;
+        copy.arrivalNanos = arrivalNanos;
+        return copy;
+    }
+}
@@ -0,0 +1,68 @@
+package kristofkallo.midimapper;
+
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+
+/**
+ * Tunable options of the application, read from a properties file.
+ * Every option has a default value, which applies if the file or the key
+ * is missing, or if the value cannot be parsed.
+ */
+public class Settings {
+    private final Properties properties;
+
+    /**
+     * Settings with every option at its default value.
+     */
+    public Settings() {
+        properties = new Properties();
+    }
+
+    public Settings(String pathname) throws IOException {
+        properties = new Properties();
+        try (InputStream inputStream = new FileInputStream(pathname)) {
+            properties.load(inputStream);
+        } catch (FileNotFoundException e) {
+            // All defaults
+        }
+    }
+
+    public String getString(String key, String defaultValue) {
+        String value = properties.getProperty(key);
+        return value == null ? defaultValue : value.trim();
+    }
+
+    public boolean getBoolean(String key, boolean defaultValue) {
+        String value = properties.getProperty(key);
+        return value == null ? defaultValue : Boolean.parseBoolean(value.trim());
+    }
+
+    public int getInt(String key, int defaultValue) {
+        String value = properties.getProperty(key);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            System.err.println("Invalid integer for " + key + ": " + value);
+            return defaultValue;
+        }
+    }
+
+    public double getDouble(String key, double defaultValue) {
+        String value = properties.getProperty(key);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Double.parseDouble(value.trim());
+        } catch (NumberFormatException e) {
+            System.err.println("Invalid number for " + key + ": " + value);
+            return defaultValue;
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package kristofkallo.midimapper;
+
+import javax.sound.midi.MidiUnavailableException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Provides in-process stand-ins for the devices: a {@link SimulatedM400} for
+ * the console, and a pair of {@link VirtualCable}s for loopMIDI, whose other
+ * ends are available for playing the DAW.
+ * Either can be unplugged, and then it cannot be opened and is not listed,
+ * like a real device.
+ */
+public class SimulatedDeviceProvider implements DeviceProvider {
+    private final SimulatedM400 console;
+    // this program -> DAW, and DAW -> this program
+    private final VirtualCable toDAW = new VirtualCable();
+    private final VirtualCable fromDAW = new VirtualCable();
+    private volatile boolean consolePlugged = true;
+    private volatile boolean dawPlugged = true;
+
+    public SimulatedDeviceProvider(SimulatedM400 console) {
+        this.console = console;
+    }
+
+    @Override
+    public PortPair openConsole() throws MidiUnavailableException {
+        if (!consolePlugged) {
+            throw new MidiUnavailableException("Simulated M-400 is unplugged.");
+        }
+        return console.getPorts();
+    }
+
+    @Override
+    public PortPair openDAW() throws MidiUnavailableException {
+        if (!dawPlugged) {
+            throw new MidiUnavailableException("Virtual loopMIDI is unplugged.");
+        }
+        return new PortPair("Virtual loopMIDI", fromDAW, toDAW, null);
+    }
+
+    @Override
+    public List<String> getDeviceNames() {
+        List<String> names = new ArrayList<>(2);
+        if (consolePlugged) {
+            names.add("Simulated M-400");
+        }
+        if (dawPlugged) {
+            names.add("Virtual loopMIDI");
+        }
+        return names;
+    }
+
+    @Override
+    public boolean isConsolePresent(List<String> deviceNames) {
+        return deviceNames.contains("Simulated M-400");
+    }
+
+    @Override
+    public boolean isDAWPresent(List<String> deviceNames) {
+        return deviceNames.contains("Virtual loopMIDI");
+    }
+
+    public void setConsolePlugged(boolean consolePlugged) {
+        this.consolePlugged = consolePlugged;
+    }
+
+    public void setDAWPlugged(boolean dawPlugged) {
+        this.dawPlugged = dawPlugged;
+    }
+
+    public SimulatedM400 getConsole() {
+        return console;
+    }
+
+    /**
+     * @return The cable that the DAW listens to, set a receiver on it to get what this program sends.
+     */
+    public VirtualCable getDAWInput() {
+        return toDAW;
+    }
+
+    /**
+     * @return The cable that the DAW sends to this program on.
+     */
+    public VirtualCable getDAWOutput() {
+        return fromDAW;
+    }
+}
@@ -0,0 +1,298 @@
+package kristofkallo.midimapper;
+
+import kristofkallo.midimapper.parameter.Parameter;
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.Receiver;
+import javax.sound.midi.SysexMessage;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import static kristofkallo.midimapper.MidiDataTransform.fromByteArray;
+import static kristofkallo.midimapper.MidiDataTransform.toByteArray;
+
+/**
+ * An in-process stand-in for the console, for running without it.
+ *
+ * It has a parameter memory for the channel blocks of the map. Data Set (DT1)
+ * messages sent to it are written into the memory, Data Requests (RQ1) are
+ * answered with Data Set messages from the memory, and messages with a wrong
+ * checksum are counted and ignored, like the console does. It can also change
+ * its parameters, as if someone operated the console, and send the changes.
+ *
+ * Everything it sends goes out on its own transmitter thread, one message at
+ * a time, like from a MIDI driver.
+ */
+public class SimulatedM400 {
+    private final MidiMap midiMap;
+    private final int maxReplyBytes;
+    // One block of 2^14 addresses per channel of the map, by the channel key
+    private final Map<Integer, byte[]> memory = new HashMap<>();
+
+    private final VirtualCable input = new VirtualCable();
+    private final Receiver output = new Receiver() {
+        @Override
+        public void send(MidiMessage message, long timeStamp) {
+            receive(MidiMessageAccess.bufferOf(message), message.getLength());
+        }
+
+        @Override
+        public void close() {
+        }
+    };
+
+    private final BlockingQueue<byte[]> outgoing = new LinkedBlockingQueue<>();
+    private final Thread transmitterThread;
+    private Thread emitterThread;
+    private volatile boolean running = true;
+
+    // Guarded by this
+    private long dataSetCount;
+    private long dataBytes;
+    private long requestCount;
+    private long checksumErrors;
+    private long unmappedBytes;
+    private long invalidMessages;
+    private long sentCount;
+
+    /**
+     * @param midiMap The map whose channels the memory covers. All values start at 0.
+     * @param maxReplyBytes The maximum number of data bytes in a reply to a Data Request.
+     */
+    public SimulatedM400(MidiMap midiMap, int maxReplyBytes) {
+        this.midiMap = midiMap;
+        this.maxReplyBytes = Math.max(maxReplyBytes, 1);
+        for (Channel channel : midiMap.getChannels()) {
+            int key = channel.getAddress().getSysexKey();
+            if (key >= 0) {
+                memory.put(key, new byte[1 << 14]);
+            }
+        }
+        transmitterThread = new Thread(this::runTransmitter, "Simulated M-400");
+        transmitterThread.setDaemon(true);
+        transmitterThread.start();
+    }
+
+    /**
+     * @return The ports of the console: the input transmits what the console sends,
+     *         the output receives what is sent to the console.
+     */
+    public PortPair getPorts() {
+        return new PortPair("Simulated M-400", input, output, null);
+    }
+
+    private synchronized void receive(byte[] msg, int length) {
+        if (length < M400ByteCode.DATA_OFFSET + 2 || !isOwnHeader(msg)) {
+            invalidMessages++;
+            return;
+        }
+        if (!DataSetDecoder.isChecksumValid(msg, length)) {
+            checksumErrors++;
+            return;
+        }
+        int address = DataSetDecoder.getStartAddress(msg);
+        if (address < 0) {
+            invalidMessages++;
+            return;
+        }
+        if (M400ByteCode.DATA_SET_COMMAND_ID.is(msg[6])) {
+            dataSetCount++;
+            int dataLength = DataSetDecoder.getDataLength(length);
+            dataBytes += dataLength;
+            for (int i = 0; i < dataLength; i++) {
+                if (!write(address + i, msg[M400ByteCode.DATA_OFFSET + i])) {
+                    unmappedBytes++;
+                }
+            }
+        } else if (M400ByteCode.DATA_REQUEST_COMMAND_ID.is(msg[6]) && length == M400ByteCode.REQUEST_LENGTH) {
+            requestCount++;
+            int size = 0;
+            for (int i = M400ByteCode.DATA_OFFSET; i < M400ByteCode.DATA_OFFSET + 4; i++) {
+                size = size << 7 | msg[i];
+            }
+            reply(address, size);
+        } else {
+            invalidMessages++;
+        }
+    }
+
+    private static boolean isOwnHeader(byte[] msg) {
+        return M400ByteCode.SYS_EX_STATUS_BYTE.is(msg[0]) &&
+                M400ByteCode.MANUFACTURER_ID.is(msg[1]) &&
+                M400ByteCode.DEVICE_ID.is(msg[2]) &&
+                M400ByteCode.MODEL_ID_0.is(msg[3]) &&
+                M400ByteCode.MODEL_ID_1.is(msg[4]) &&
+                M400ByteCode.MODEL_ID_2.is(msg[5]);
+    }
+
+    /**
+     * @return Whether the address is in the memory.
+     */
+    private boolean write(int address, byte value) {
+        byte[] block = memory.get(address >>> 14);
+        if (block == null || value < 0) {
+            return false;
+        }
+        block[address & 0x3fff] = value;
+        return true;
+    }
+
+    /**
+     * Queues the Data Set messages that answer a Data Request, in pieces of at most maxReplyBytes.
+     * The requested addresses that are not in the memory are answered with zeros.
+     */
+    private void reply(int address, int size) {
+        for (int start = address; start < address + size; start += maxReplyBytes) {
+            int length = Math.min(maxReplyBytes, address + size - start);
+            byte[] message = createDataSet(start, length);
+            for (int i = 0; i < length; i++) {
+                byte[] block = memory.get((start + i) >>> 14);
+                message[M400ByteCode.DATA_OFFSET + i] = block == null ? 0 : block[(start + i) & 0x3fff];
+            }
+            queue(message);
+        }
+    }
+
+    /**
+     * @return A Data Set message with the header and the address filled in.
+     */
+    private static byte[] createDataSet(int address, int dataLength) {
+        byte[] message = new byte[M400ByteCode.DATA_OFFSET + dataLength + 2];
+        M400ByteCode.putHeader(message, M400ByteCode.DATA_SET_COMMAND_ID);
+        M400ByteCode.putAddress(message, M400ByteCode.ADDRESS_OFFSET, address);
+        message[message.length - 1] = M400ByteCode.EOX.getCode();
+        return message;
+    }
+
+    /**
+     * Fills in the checksum and queues the message for the transmitter thread.
+     */
+    private void queue(byte[] message) {
+        M400ByteCode.putChecksum(message, message.length - 2);
+        outgoing.add(message);
+    }
+
+    private void runTransmitter() {
+        SysexMessage message = new SysexMessage();
+        while (running) {
+            byte[] data;
+            try {
+                data = outgoing.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            try {
+                message.setMessage(data, data.length);
+                input.send(message, -1);
+            } catch (InvalidMidiDataException | RuntimeException e) {
+                e.printStackTrace();
+            }
+            synchronized (this) {
+                sentCount++;
+            }
+        }
+    }
+
+    /**
+     * @return The value of the parameter in the memory.
+     */
+    public synchronized int read(Parameter parameter) {
+        byte[] block = memory.get(parameter.getChannel().getAddress().getSysexKey());
+        if (block == null) {
+            throw new IllegalArgumentException("parameter is not in the memory");
+        }
+        return fromByteArray(block, parameter.getAddress().getSysexKey(), parameter.getLengthInBytes(), parameter.isSigned());
+    }
+
+    /**
+     * Sets the parameter in the memory and sends the change, as if it was changed on the console.
+     */
+    public synchronized void change(Parameter parameter, int value) {
+        int address = parameter.getChannel().getAddress().getSysexKey() << 14 | parameter.getAddress().getSysexKey();
+        byte[] message = createDataSet(address, parameter.getLengthInBytes());
+        toByteArray(value, message, M400ByteCode.DATA_OFFSET, parameter.getLengthInBytes());
+        for (int i = 0; i < parameter.getLengthInBytes(); i++) {
+            write(address + i, message[M400ByteCode.DATA_OFFSET + i]);
+        }
+        queue(message);
+    }
+
+    /**
+     * Starts changing random parameters to random values of their range, at the given rate.
+     *
+     * @param rate The number of changes per second.
+     */
+    public synchronized void startChanging(double rate) {
+        stopChanging();
+        long intervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+        emitterThread = new Thread(() -> {
+            Random random = new Random();
+            long next = System.nanoTime();
+            while (!Thread.currentThread().isInterrupted()) {
+                Parameter parameter = midiMap.getParameter(random.nextInt(midiMap.getParameterCount()));
+                change(parameter, parameter.mapDAWToConsole(random.nextInt(16384)));
+                next += intervalNanos;
+                long wait = next - System.nanoTime();
+                if (wait > 0) {
+                    LockSupport.parkNanos(wait);
+                }
+            }
+        }, "Simulated M-400 changes");
+        emitterThread.setDaemon(true);
+        emitterThread.start();
+    }
+
+    public synchronized void stopChanging() {
+        if (emitterThread != null) {
+            emitterThread.interrupt();
+            emitterThread = null;
+        }
+    }
+
+    /**
+     * @return The number of messages waiting to be sent.
+     */
+    public int getOutgoingCount() {
+        return outgoing.size();
+    }
+
+    public synchronized long getDataBytes() {
+        return dataBytes;
+    }
+
+    public synchronized long getChecksumErrors() {
+        return checksumErrors;
+    }
+
+    /**
+     * @return The number of bytes written to addresses outside the memory.
+     */
+    public synchronized long getUnmappedBytes() {
+        return unmappedBytes;
+    }
+
+    public synchronized long getInvalidMessages() {
+        return invalidMessages;
+    }
+
+    public synchronized String getStatistics() {
+        return String.format("Simulated M-400: %d Data Set messages with %d bytes, %d Data Requests received, " +
+                        "%d checksum errors, %d unmapped bytes, %d invalid messages, %d messages sent",
+                dataSetCount, dataBytes, requestCount, checksumErrors, unmappedBytes, invalidMessages, sentCount);
+    }
+
+    /**
+     * Stops the transmitter thread and the changes.
+     */
+    public void close() {
+        stopChanging();
+        running = false;
+        transmitterThread.interrupt();
+    }
+}
@@ -0,0 +1,65 @@
+package kristofkallo.midimapper;
+
+import kristofkallo.midimapper.parameter.Parameter;
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.Receiver;
+import javax.sound.midi.SysexMessage;
+
+import static kristofkallo.midimapper.MidiDataTransform.toByteArray;
+
+/**
+ * Sends parameter values to the console as Data Set SysEx messages.
+ */
+public class SysexOutput implements ParameterOutput {
+    private final Receiver receiver;
+    private final LatencyStats latencyStats;
+
+    /**
+     * Buffer of the outgoing Data Set message, large enough for any data length
+     * (the messages are 14 to 16 bytes long with the current map).
+     * It is reused for every message together with the message instance,
+     * which copies the buffer into its own reused array.
+     */
+    private byte[] outMsgData = new byte[M400ByteCode.DATA_OFFSET + 4 + 2];
+    private final SysexMessage outMsg = new SysexMessage();
+
+    public SysexOutput(Receiver receiver) {
+        this(receiver, null);
+    }
+
+    /**
+     * @param latencyStats Where to record the latency of the messages, null if not needed.
+     */
+    public SysexOutput(Receiver receiver, LatencyStats latencyStats) {
+        this.receiver = receiver;
+        this.latencyStats = latencyStats;
+    }
+
+    @Override
+    public synchronized void send(Parameter parameter, int value, long timeStamp, long arrivalNanos) throws InvalidMidiDataException {
+        int outMsgLen = buildSysexMsg(parameter, value);
+        outMsg.setMessage(outMsgData, outMsgLen);
+        receiver.send(outMsg, timeStamp);
+        if (latencyStats != null) {
+            latencyStats.record(LatencyStats.Direction.DAW_TO_CONSOLE, parameter, arrivalNanos);
+        }
+    }
+
+    /**
+     * Fills the parameter's Data Set template with the data and the checksum in the reused buffer.
+     *
+     * @return The length of the message.
+     */
+    private int buildSysexMsg(Parameter parameter, int value) {
+        byte[] template = parameter.getSysexTemplate();
+        int outMsgLen = template.length;
+        if (outMsgData.length < outMsgLen) {
+            outMsgData = new byte[outMsgLen];
+        }
+        System.arraycopy(template, 0, outMsgData, 0, outMsgLen);
+        toByteArray(value, outMsgData, M400ByteCode.DATA_OFFSET, parameter.getLengthInBytes());
+        M400ByteCode.putChecksum(outMsgData, M400ByteCode.DATA_OFFSET + parameter.getLengthInBytes());
+        return outMsgLen;
+    }
+}
@@ -0,0 +1,125 @@
+package kristofkallo.midimapper;
+
+import javax.sound.midi.MidiDevice;
+import javax.sound.midi.MidiSystem;
+import javax.sound.midi.MidiUnavailableException;
+import javax.sound.midi.Receiver;
+import javax.sound.midi.Transmitter;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Opens the MIDI devices of the system by name: the RSS M-400 driver for the
+ * console, and the two loopMIDI ports for the DAW.
+ */
+public class SystemDeviceProvider implements DeviceProvider {
+    private final String consoleName;
+    private final String dawInName;
+    private final String dawOutName;
+
+    /**
+     * @param consoleName A part of the name of the console's ports.
+     * @param dawInName The name of the port that this program sends to the DAW on.
+     * @param dawOutName The name of the port that the DAW sends to this program on.
+     */
+    public SystemDeviceProvider(String consoleName, String dawInName, String dawOutName) {
+        this.consoleName = consoleName;
+        this.dawInName = dawInName;
+        this.dawOutName = dawOutName;
+    }
+
+    @Override
+    public PortPair openConsole() throws MidiUnavailableException {
+        MidiDevice in = findDevice(consoleName, false, true);
+        if (in == null) {
+            throw new MidiUnavailableException("M-400 (In port) device not found. Is the console plugged in and running?");
+        }
+        MidiDevice out = findDevice(consoleName, false, false);
+        if (out == null) {
+            throw new MidiUnavailableException("M-400 (Out port) device not found. Is the console plugged in and running?");
+        }
+        return open("M-400", in, "Could not open M-400 MIDI In port.", out, "Could not open M-400 MIDI Out port.");
+    }
+
+    @Override
+    public PortPair openDAW() throws MidiUnavailableException {
+        MidiDevice out = findDevice(dawInName, true, false);
+        if (out == null) {
+            throw new MidiUnavailableException(dawInName + " device not found. Is loopMIDI running?");
+        }
+        MidiDevice in = findDevice(dawOutName, true, true);
+        if (in == null) {
+            throw new MidiUnavailableException(dawOutName + " device not found. Is loopMIDI running?");
+        }
+        return open("loopMIDI", in, "Could not open " + dawOutName + ".", out, "Could not open " + dawInName + ".");
+    }
+
+    @Override
+    public List<String> getDeviceNames() {
+        MidiDevice.Info[] infos = MidiSystem.getMidiDeviceInfo();
+        List<String> names = new ArrayList<>(infos.length);
+        for (MidiDevice.Info info : infos) {
+            names.add(info.getName());
+        }
+        return names;
+    }
+
+    @Override
+    public boolean isConsolePresent(List<String> deviceNames) {
+        for (String name : deviceNames) {
+            if (name.contains(consoleName)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public boolean isDAWPresent(List<String> deviceNames) {
+        return deviceNames.contains(dawInName) && deviceNames.contains(dawOutName);
+    }
+
+    /**
+     * @param exact Whether the name must match exactly, otherwise it must be contained.
+     * @param input Whether an input (a device with transmitters) is looked for, otherwise an output.
+     * @return The first matching device, or null.
+     */
+    static MidiDevice findDevice(String name, boolean exact, boolean input) throws MidiUnavailableException {
+        for (MidiDevice.Info info : MidiSystem.getMidiDeviceInfo()) {
+            if (exact ? !info.getName().equals(name) : !info.getName().contains(name)) {
+                continue;
+            }
+            MidiDevice device = MidiSystem.getMidiDevice(info);
+            if (input ? device.getMaxTransmitters() != 0 : device.getMaxReceivers() != 0) {
+                return device;
+            }
+        }
+        return null;
+    }
+
+    private static PortPair open(String name, MidiDevice in, String inError, MidiDevice out, String outError) throws MidiUnavailableException {
+        try {
+            in.open();
+        } catch (MidiUnavailableException e) {
+            throw new MidiUnavailableException(inError);
+        }
+        try {
+            out.open();
+        } catch (MidiUnavailableException e) {
+            in.close();
+            throw new MidiUnavailableException(outError);
+        }
+        try {
+            Transmitter transmitter = in.getTransmitter();
+            Receiver receiver = out.getReceiver();
+            return new PortPair(name, transmitter, receiver, () -> {
+                in.close();
+                out.close();
+            });
+        } catch (MidiUnavailableException e) {
+            in.close();
+            out.close();
+            throw new MidiUnavailableException(name + " ports could not be retrieved. (This shouldn't happen.)");
+        }
+    }
+}
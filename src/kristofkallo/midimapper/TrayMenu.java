@@ -5,7 +5,7 @@ import java.awt.*;
 import java.io.FileNotFoundException;
 import java.net.URL;
 
-public class TrayMenu {
+public class TrayMenu implements Notifier {
     public static final String TRAY_ICON_FILENAME = "icon.png";
 
     private final App app;
@@ -17,6 +17,27 @@ public class TrayMenu {
         MenuItem reconnectMenuItem = new MenuItem("Reconnect");
         reconnectMenuItem.addActionListener(e -> this.app.connectDevices());
         menu.add(reconnectMenuItem);
+        MenuItem syncMenuItem = new MenuItem("Sync from console");
+        syncMenuItem.addActionListener(e -> this.app.syncFromConsole());
+        menu.add(syncMenuItem);
+        MenuItem resyncDAWMenuItem = new MenuItem("Resync DAW");
+        resyncDAWMenuItem.addActionListener(e -> this.app.resyncDAW());
+        menu.add(resyncDAWMenuItem);
+        MenuItem resyncConsoleMenuItem = new MenuItem("Resync console");
+        resyncConsoleMenuItem.addActionListener(e -> this.app.resyncConsole());
+        menu.add(resyncConsoleMenuItem);
+        MenuItem saveSnapshotMenuItem = new MenuItem("Save snapshot");
+        saveSnapshotMenuItem.addActionListener(e -> this.app.saveSnapshot());
+        menu.add(saveSnapshotMenuItem);
+        MenuItem loadSnapshotMenuItem = new MenuItem("Load snapshot");
+        loadSnapshotMenuItem.addActionListener(e -> this.app.loadSnapshot());
+        menu.add(loadSnapshotMenuItem);
+        MenuItem statisticsMenuItem = new MenuItem("Statistics");
+        statisticsMenuItem.addActionListener(e -> displayMessage(this.app.getStatistics(), MessageType.INFO));
+        menu.add(statisticsMenuItem);
+        MenuItem latencyMenuItem = new MenuItem("Dump latency stats");
+        latencyMenuItem.addActionListener(e -> this.app.dumpLatency());
+        menu.add(latencyMenuItem);
         MenuItem quitMenuItem = new MenuItem("Quit");
         quitMenuItem.addActionListener(e -> this.app.quit());
         menu.add(quitMenuItem);
@@ -31,6 +52,37 @@ public class TrayMenu {
         }
         return (new ImageIcon(imageURL)).getImage();
     }
+
+    /**
+     * Starts the application with the tray menu. The errors that prevent it are
+     * displayed in dialogs, then the application exits.
+     */
+    static void start(App app) {
+        // This JPanel is not displayed directly but is used as a parent component
+        // to display application-level error messages.
+        JPanel panel = new JPanel();
+        panel.setVisible(false);
+        TrayMenu trayMenu;
+        try {
+            trayMenu = new TrayMenu(app);
+        } catch (AWTException e) {
+            JOptionPane.showMessageDialog(panel, "Tray icon error: " + e.getLocalizedMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+            System.exit(1);
+            return;
+        } catch (FileNotFoundException e) {
+            JOptionPane.showMessageDialog(panel, "File not found: " + e.getLocalizedMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+            System.exit(1);
+            return;
+        }
+        app.start(trayMenu, false);
+    }
+
+    @Override
+    public void displayMessage(String message, MessageType type) {
+        trayIcon.displayMessage(App.APP_NAME, message, TrayIcon.MessageType.valueOf(type.name()));
+    }
+
+    @Override
     public void destroy() {
         SystemTray.getSystemTray().remove(trayIcon);
     }
@@ -0,0 +1,40 @@
+package kristofkallo.midimapper;
+
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.Receiver;
+import javax.sound.midi.Transmitter;
+
+/**
+ * An in-process stand-in for a loopMIDI port: whatever is sent to it is passed
+ * on to the receiver set on it, on the sender's thread.
+ * Like with a real port, the message may be reused by the sender after the
+ * call, so a receiver that keeps it must copy it.
+ * The application also sends through cables to the output ports, so that
+ * the ports can be replaced behind them.
+ */
+public class VirtualCable implements Receiver, Transmitter {
+    private volatile Receiver receiver;
+
+    @Override
+    public void send(MidiMessage message, long timeStamp) {
+        Receiver current = receiver;
+        if (current != null) {
+            current.send(message, timeStamp);
+        }
+    }
+
+    @Override
+    public void setReceiver(Receiver receiver) {
+        this.receiver = receiver;
+    }
+
+    @Override
+    public Receiver getReceiver() {
+        return receiver;
+    }
+
+    @Override
+    public void close() {
+        receiver = null;
+    }
+}
@@ -0,0 +1,129 @@
+package kristofkallo.midimapper.parameter;
+
+import kristofkallo.midimapper.PolygonalFunction;
+import kristofkallo.midimapper.Scale;
+import kristofkallo.midimapper.ScalePoints;
+import org.apache.commons.math3.analysis.interpolation.SplineInterpolator;
+import org.apache.commons.math3.analysis.polynomials.PolynomialSplineFunction;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Flyweight registry of the immutable parts of parameters, so that parameters
+ * with identical scales share them instead of each building their own.
+ * The map gives the same scale to e.g. the fader of every channel, or to
+ * "aux01 send" ... "aux16 send".
+ *
+ * Interpolated curves are shared by scale points. Lookup tables are shared by
+ * parameters whose mapping is defined by the same values, see {@link Key}.
+ */
+class CurveCache {
+    private final Map<ScalePoints, PolynomialSplineFunction> splines = new IdentityHashMap<>();
+    private final Map<ScalePoints, PolygonalFunction> polygons = new IdentityHashMap<>();
+    private final Map<Key, Parameter> compiledParameters = new HashMap<>();
+
+    private int curvesCreated;
+    private int curvesShared;
+    private int tablesCompiled;
+    private int tablesShared;
+
+    PolynomialSplineFunction getSpline(ScalePoints scalePoints) {
+        PolynomialSplineFunction spline = splines.get(scalePoints);
+        if (spline == null) {
+            spline = new SplineInterpolator().interpolate(scalePoints.x, scalePoints.y);
+            splines.put(scalePoints, spline);
+            curvesCreated++;
+        } else {
+            curvesShared++;
+        }
+        return spline;
+    }
+
+    PolygonalFunction getPolygon(ScalePoints scalePoints) {
+        PolygonalFunction polygon = polygons.get(scalePoints);
+        if (polygon == null) {
+            polygon = new PolygonalFunction(scalePoints.x, scalePoints.y);
+            polygons.put(scalePoints, polygon);
+            curvesCreated++;
+        } else {
+            curvesShared++;
+        }
+        return polygon;
+    }
+
+    /**
+     * Compiles the parameter, or gives it the tables of an already compiled
+     * parameter with the same key.
+     */
+    void compile(Parameter parameter, Key key, int maxTableSize) {
+        Parameter twin = compiledParameters.get(key);
+        if (twin != null) {
+            parameter.setTables(twin.getConsoleToDAWTable(), twin.getTableOffset(), twin.getDAWToConsoleTable());
+            if (twin.isCompiled()) {
+                tablesShared++;
+            }
+            return;
+        }
+        if (parameter.compile(maxTableSize)) {
+            tablesCompiled++;
+        }
+        compiledParameters.put(key, parameter);
+    }
+
+    /**
+     * @return Counts of the created and the shared curves and tables.
+     */
+    String getStatistics() {
+        return String.format("%d curves created, %d shared; %d parameters compiled, %d sharing their tables",
+                curvesCreated, curvesShared, tablesCompiled, tablesShared);
+    }
+
+    /**
+     * Every value that the mapping of a parameter depends on. The scale points
+     * are compared by identity, as the map resolves each scale id to a single instance.
+     */
+    static final class Key {
+        private final Scale scale;
+        private final ScalePoints scalePoints;
+        private final int bytes;
+        private final boolean signed;
+        private final double[] constants;
+        private final int hashCode;
+
+        Key(Scale scale, ScalePoints scalePoints, int bytes, boolean signed, double min, double max, double dMin, double dMax,
+            double exponent, double threshold, double base, double coefficient) {
+            this.scale = scale;
+            this.scalePoints = scalePoints;
+            this.bytes = bytes;
+            this.signed = signed;
+            this.constants = new double[]{min, max, dMin, dMax, exponent, threshold, base, coefficient};
+            int hash = scale.hashCode();
+            hash = 31 * hash + System.identityHashCode(scalePoints);
+            hash = 31 * hash + bytes;
+            hash = 31 * hash + (signed ? 1 : 0);
+            hash = 31 * hash + Arrays.hashCode(constants);
+            this.hashCode = hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return scale == other.scale &&
+                    scalePoints == other.scalePoints &&
+                    bytes == other.bytes &&
+                    signed == other.signed &&
+                    Arrays.equals(constants, other.constants);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+}
@@ -1,6 +1,9 @@
 package kristofkallo.midimapper.parameter;
 
 import kristofkallo.midimapper.Address;
+import kristofkallo.midimapper.Channel;
+import kristofkallo.midimapper.M400ByteCode;
+import kristofkallo.midimapper.Scale;
 
 public abstract class Parameter {
     protected String name;
@@ -12,6 +15,41 @@ public abstract class Parameter {
     protected double dMin;
     protected double dMax;
 
+    private Channel channel;
+    /**
+     * Dense index of the parameter in its map, or -1 if not indexed yet.
+     */
+    private int index = -1;
+    /**
+     * A complete Data Set message addressing this parameter, with zeros in
+     * place of the data and the checksum.
+     */
+    private byte[] sysexTemplate;
+
+    /**
+     * Precomputed results of the console to DAW mapping for every source value
+     * from {@link #getSourceLow()} to {@link #getSourceHigh()}, or null if the
+     * parameter is evaluated analytically.
+     */
+    private short[] consoleToDAWTable;
+    private int tableOffset;
+    /**
+     * Precomputed results of the DAW to console mapping for every 14-bit DAW value,
+     * or null if the inverse is evaluated on demand.
+     */
+    private short[] dawToConsoleTable;
+    /**
+     * Direction of the console to DAW mapping: 1 if increasing, -1 if decreasing,
+     * 0 if not determined yet.
+     */
+    private int direction;
+
+    /**
+     * Half width of the interval around an analytic estimate in which
+     * {@link #refineInverse(double, int)} looks for the exact inverse.
+     */
+    private static final int REFINE_RADIUS = 16;
+
     public String getName() {
         return name;
     }
@@ -44,9 +82,305 @@ public abstract class Parameter {
         return dMax;
     }
 
-    public abstract int mapConsoleToDAW(int source);
+    public abstract Scale getScale();
+
+    public Channel getChannel() {
+        return channel;
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    public void setIndex(int index) {
+        this.index = index;
+    }
+
+    /**
+     * Called when the parameter is put into a channel.
+     * Prepares the Data Set message template, as the address of the channel is known from now on.
+     */
+    public void setChannel(Channel channel) {
+        this.channel = channel;
+        byte[] template = new byte[M400ByteCode.DATA_OFFSET + lengthInBytes + 2];
+        M400ByteCode.putHeader(template, M400ByteCode.DATA_SET_COMMAND_ID);
+        template[7] = channel.getAddress().getSysex0();
+        template[8] = channel.getAddress().getSysex1();
+        template[9] = address.getSysex0();
+        template[10] = address.getSysex1();
+        template[template.length - 1] = M400ByteCode.EOX.getCode();
+        sysexTemplate = template;
+    }
+
+    /**
+     * The Data Set message template of this parameter. Only the data and the
+     * checksum need to be filled in before sending it.
+     * The returned array must not be modified, copy it into a buffer instead.
+     *
+     * @return The template, or null if the parameter is not in a channel yet.
+     */
+    public byte[] getSysexTemplate() {
+        return sysexTemplate;
+    }
+
+    public boolean isCompiled() {
+        return consoleToDAWTable != null;
+    }
+
+    /**
+     * The console to DAW lookup table, see {@link #compile(int)}.
+     * The returned array must not be modified.
+     *
+     * @return The table, or null if the parameter is evaluated analytically.
+     */
+    public short[] getConsoleToDAWTable() {
+        return consoleToDAWTable;
+    }
+
+    /**
+     * @return The source value of the first entry of the console to DAW table.
+     */
+    public int getTableOffset() {
+        return tableOffset;
+    }
+
+    /**
+     * The DAW to console lookup table, see {@link #compile(int)}.
+     * The returned array must not be modified.
+     *
+     * @return The table, or null if the inverse is evaluated on demand.
+     */
+    public short[] getDAWToConsoleTable() {
+        return dawToConsoleTable;
+    }
+
+    /**
+     * Installs lookup tables that were built by {@link #compile(int)} earlier,
+     * e.g. in a previous run of the application, instead of computing them again.
+     *
+     * @param consoleToDAWTable The console to DAW table, or null.
+     * @param tableOffset The source value of its first entry.
+     * @param dawToConsoleTable The DAW to console table of 16384 entries, or null.
+     */
+    public void setTables(short[] consoleToDAWTable, int tableOffset, short[] dawToConsoleTable) {
+        if (dawToConsoleTable != null && dawToConsoleTable.length != 16384) {
+            throw new IllegalArgumentException("DAW to console table must have 16384 entries");
+        }
+        this.tableOffset = tableOffset;
+        this.consoleToDAWTable = consoleToDAWTable;
+        this.dawToConsoleTable = dawToConsoleTable;
+    }
+
+    public int mapConsoleToDAW(int source) {
+        short[] table = consoleToDAWTable;
+        if (table == null) {
+            return evaluateConsoleToDAW(source);
+        }
+        if (source <= tableOffset) {
+            return table[0];
+        }
+        int tableIndex = source - tableOffset;
+        if (tableIndex >= table.length) {
+            return table[table.length - 1];
+        }
+        return table[tableIndex];
+    }
+
+    /**
+     * Evaluates the console to DAW mapping analytically.
+     *
+     * @param source The value sent by the console.
+     * @return Unsigned 14-bit value for the DAW.
+     */
+    protected abstract int evaluateConsoleToDAW(int source);
+
+    /**
+     * Evaluates the console to DAW mapping analytically even if it is compiled,
+     * e.g. to check the table against it.
+     *
+     * @param source The value sent by the console.
+     * @return Unsigned 14-bit value for the DAW.
+     */
+    public int mapConsoleToDAWAnalytically(int source) {
+        return evaluateConsoleToDAW(source);
+    }
+
+    public int mapDAWToConsole(int source) {
+        short[] table = dawToConsoleTable;
+        if (table == null) {
+            return evaluateDAWToConsole(source);
+        }
+        return table[(int) clamp(source, 0, 16383)];
+    }
+
+    /**
+     * Evaluates the DAW to console mapping without the precomputed table.
+     * By default, it searches the forward mapping, see {@link #searchConsoleValue(int)}.
+     * Parameters with an analytic inverse override this, and should also
+     * override {@link #hasAnalyticInverse()}.
+     *
+     * @param source Unsigned 14-bit value sent by the DAW.
+     * @return The value for the console.
+     */
+    protected int evaluateDAWToConsole(int source) {
+        return searchConsoleValue(source);
+    }
 
-    public abstract int mapDAWToConsole(int source);
+    /**
+     * Whether {@link #evaluateDAWToConsole(int)} is cheap enough to be evaluated
+     * on every message, so that no DAW to console table is needed.
+     */
+    protected boolean hasAnalyticInverse() {
+        return false;
+    }
+
+    /**
+     * Finds the console value whose DAW value is the closest to the target
+     * with a binary search over the console to DAW mapping, which is assumed to be monotonic.
+     * If the target is the image of some console value, the result maps exactly to
+     * the target, so a console -> DAW -> console round trip is stable.
+     *
+     * @param target Unsigned 14-bit DAW value.
+     * @return The value for the console.
+     */
+    protected int searchConsoleValue(int target) {
+        return searchConsoleValue(target, getConsoleLow(), getConsoleHigh());
+    }
+
+    /**
+     * Rounds an analytic estimate of the inverse to the console value whose DAW value
+     * is the closest to the target. Only the neighbourhood of the estimate is searched,
+     * unless the estimate turns out to be too far off.
+     * The result is the same as that of {@link #searchConsoleValue(int)}.
+     *
+     * @param estimate Estimate of the console value, it is clamped into the console domain.
+     * @param target Unsigned 14-bit DAW value.
+     * @return The value for the console.
+     */
+    protected int refineInverse(double estimate, int target) {
+        int low = getConsoleLow();
+        int high = getConsoleHigh();
+        if (Double.isNaN(estimate)) {
+            return searchConsoleValue(target, low, high);
+        }
+        int guess = (int) Math.round(clamp(estimate, low, high));
+        int from = Math.max(low, guess - REFINE_RADIUS);
+        int to = Math.min(high, guess + REFINE_RADIUS);
+        boolean increasing = isIncreasing();
+        if ((from > low && reaches(mapConsoleToDAW(from - 1), target, increasing)) ||
+                (to < high && !reaches(mapConsoleToDAW(to), target, increasing))) {
+            // The target is not inside the neighbourhood
+            from = low;
+            to = high;
+        }
+        return searchConsoleValue(target, from, to);
+    }
+
+    private int searchConsoleValue(int target, int from, int to) {
+        boolean increasing = isIncreasing();
+        // Find the first value that reaches the target
+        while (from < to) {
+            int mid = from + (to - from) / 2;
+            if (reaches(mapConsoleToDAW(mid), target, increasing)) {
+                to = mid;
+            } else {
+                from = mid + 1;
+            }
+        }
+        // The one before may be closer if the target is not reachable exactly
+        if (from > getConsoleLow() &&
+                Math.abs(mapConsoleToDAW(from - 1) - target) < Math.abs(mapConsoleToDAW(from) - target)) {
+            return from - 1;
+        }
+        return from;
+    }
+
+    private static boolean reaches(int value, int target, boolean increasing) {
+        return increasing ? value >= target : value <= target;
+    }
+
+    private boolean isIncreasing() {
+        if (direction == 0) {
+            direction = mapConsoleToDAW(getConsoleLow()) <= mapConsoleToDAW(getConsoleHigh()) ? 1 : -1;
+        }
+        return direction > 0;
+    }
+
+    /**
+     * Precomputes the console to DAW mapping into a lookup table, so that
+     * {@link #mapConsoleToDAW(int)} becomes a single array read.
+     * Parameters that cannot be tabulated, or whose source domain is larger
+     * than the given limit, are left to be evaluated analytically.
+     *
+     * @param maxTableSize The maximum number of entries of the table.
+     * @return Whether the table has been built.
+     */
+    public boolean compile(int maxTableSize) {
+        if (!isCompilable()) {
+            return false;
+        }
+        int low = getSourceLow();
+        int high = getSourceHigh();
+        long size = (long) high - low + 1;
+        if (size < 1 || size > maxTableSize) {
+            return false;
+        }
+        short[] table = new short[(int) size];
+        for (int i = 0; i < table.length; i++) {
+            table[i] = (short) evaluateConsoleToDAW(low + i);
+        }
+        tableOffset = low;
+        consoleToDAWTable = table;
+        if (!hasAnalyticInverse()) {
+            compileDAWToConsole();
+        }
+        return true;
+    }
+
+    private void compileDAWToConsole() {
+        if (getConsoleLow() < Short.MIN_VALUE || getConsoleHigh() > Short.MAX_VALUE) {
+            return;
+        }
+        short[] table = new short[16384];
+        for (int i = 0; i < table.length; i++) {
+            table[i] = (short) searchConsoleValue(i);
+        }
+        dawToConsoleTable = table;
+    }
+
+    protected boolean isCompilable() {
+        return true;
+    }
+
+    /**
+     * Every source value at or below this one maps to the same DAW value.
+     * By default, this is the lower end of the interval that the source is clamped into.
+     */
+    protected int getSourceLow() {
+        return (int) Math.floor(Math.min(min, max));
+    }
+
+    /**
+     * Every source value at or above this one maps to the same DAW value.
+     * By default, this is the upper end of the interval that the source is clamped into.
+     */
+    protected int getSourceHigh() {
+        return (int) Math.ceil(Math.max(min, max));
+    }
+
+    /**
+     * The lowest value that the console accepts.
+     */
+    protected int getConsoleLow() {
+        return (int) Math.ceil(Math.min(min, max));
+    }
+
+    /**
+     * The highest value that the console accepts.
+     */
+    protected int getConsoleHigh() {
+        return (int) Math.floor(Math.max(min, max));
+    }
 
     protected static double clamp(double number, double min, double max) {
         // handle inverted intervals
@@ -1,7 +1,7 @@
 package kristofkallo.midimapper.parameter;
 
 import kristofkallo.midimapper.Address;
-import sun.reflect.generics.reflectiveObjects.NotImplementedException;
+import kristofkallo.midimapper.Scale;
 
 public class ParameterExpLin extends Parameter {
     private final double threshold;
@@ -23,7 +23,12 @@ public class ParameterExpLin extends Parameter {
         this.thresholdY = coefficient * Math.pow(base, threshold);
     }
     @Override
-    public int mapConsoleToDAW(int source) {
+    public Scale getScale() {
+        return Scale.EXPLIN;
+    }
+
+    @Override
+    protected int evaluateConsoleToDAW(int source) {
         double sourceClamped = clampSource(source);
         double res;
         if (sourceClamped < threshold) {
@@ -36,7 +41,19 @@ public class ParameterExpLin extends Parameter {
     }
 
     @Override
-    public int mapDAWToConsole(int source) {
-        throw new NotImplementedException();
+    protected int evaluateDAWToConsole(int source) {
+        double y = source / 16383.0;
+        double estimate;
+        if (y < thresholdY) {
+            estimate = Math.log(y / coefficient) / Math.log(base);
+        } else {
+            estimate = threshold + (y - thresholdY) * (dMax - threshold) / (1 - thresholdY);
+        }
+        return refineInverse(estimate, source);
+    }
+
+    @Override
+    protected boolean hasAnalyticInverse() {
+        return true;
     }
 }
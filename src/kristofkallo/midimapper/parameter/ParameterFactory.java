@@ -6,6 +6,34 @@ import kristofkallo.midimapper.ScalePoints;
 import org.xml.sax.SAXException;
 
 public class ParameterFactory {
+    /**
+     * Tables of this many entries cover any 2-byte parameter of the console,
+     * but not the 3-byte frequencies, which are evaluated analytically.
+     */
+    public static final int DEFAULT_MAX_TABLE_SIZE = 16384;
+
+    private final boolean compiled;
+    private final int maxTableSize;
+    /**
+     * Curves and tables shared by the parameters created by this factory.
+     */
+    private final CurveCache curveCache = new CurveCache();
+
+    public ParameterFactory() {
+        this(true, DEFAULT_MAX_TABLE_SIZE);
+    }
+
+    /**
+     * @param compiled Whether to precompute the mappings of the created parameters
+     *                 into lookup tables, see {@link Parameter#compile(int)}.
+     * @param maxTableSize Parameters with a larger source domain than this are
+     *                     evaluated analytically even in compiled mode.
+     */
+    public ParameterFactory(boolean compiled, int maxTableSize) {
+        this.compiled = compiled;
+        this.maxTableSize = maxTableSize;
+    }
+
     public Parameter createParameter(
             Scale scale,
             String name,
@@ -33,7 +61,8 @@ public class ParameterFactory {
                 parameter = new ParameterLog(name, address, bytes, signed, min, max, dMin, dMax);
                 break;
             case SPLINE:
-                parameter = new ParameterSpline(name, address, bytes, signed, min, max, dMin, dMax, scalePoints);
+                parameter = new ParameterSpline(name, address, bytes, signed, min, max, dMin, dMax,
+                        scalePoints == null ? null : curveCache.getSpline(scalePoints));
                 break;
             case POW:
                 parameter = new ParameterPower(name, address, bytes, signed, min, max, dMin, dMax, exponent);
@@ -45,7 +74,8 @@ public class ParameterFactory {
                 parameter = new ParameterStairs(name, address, scalePoints);
                 break;
             case POLY:
-                parameter = new ParameterPolygonal(name, address, bytes, signed, min, max, dMin, dMax, scalePoints);
+                parameter = new ParameterPolygonal(name, address, bytes, signed, min, max, dMin, dMax,
+                        curveCache.getPolygon(scalePoints));
                 break;
             case EXPLIN:
                 parameter = new ParameterExpLin(name, address, bytes, signed, min, max, dMin, dMax, threshold, base, coefficient);
@@ -53,6 +83,17 @@ public class ParameterFactory {
             default:
                 throw new SAXException("Unimplemented scale type.");
         }
+        if (compiled) {
+            curveCache.compile(parameter, new CurveCache.Key(scale, scalePoints, bytes, signed,
+                    min, max, dMin, dMax, exponent, threshold, base, coefficient), maxTableSize);
+        }
         return parameter;
     }
+
+    /**
+     * @return How many curves and tables have been shared between the created parameters.
+     */
+    public String getStatistics() {
+        return curveCache.getStatistics();
+    }
 }
@@ -1,7 +1,7 @@
 package kristofkallo.midimapper.parameter;
 
 import kristofkallo.midimapper.Address;
-import sun.reflect.generics.reflectiveObjects.NotImplementedException;
+import kristofkallo.midimapper.Scale;
 
 public class ParameterLinear extends Parameter {
     public ParameterLinear(String name, Address address, int bytes, boolean signed, double min, double max, double dMin, double dMax) {
@@ -16,13 +16,24 @@ public class ParameterLinear extends Parameter {
     }
 
     @Override
-    public int mapConsoleToDAW(int source) {
+    public Scale getScale() {
+        return Scale.LIN;
+    }
+
+    @Override
+    protected int evaluateConsoleToDAW(int source) {
         double sourceClamped = clampSource(source);
         return (int) Math.floor(16383 * (sourceClamped - dMin) / (dMax - dMin));
     }
 
     @Override
-    public int mapDAWToConsole(int source) {
-        throw new NotImplementedException();
+    protected int evaluateDAWToConsole(int source) {
+        double y = source / 16383.0;
+        return refineInverse(dMin + y * (dMax - dMin), source);
+    }
+
+    @Override
+    protected boolean hasAnalyticInverse() {
+        return true;
     }
 }
@@ -1,7 +1,7 @@
 package kristofkallo.midimapper.parameter;
 
 import kristofkallo.midimapper.Address;
-import sun.reflect.generics.reflectiveObjects.NotImplementedException;
+import kristofkallo.midimapper.Scale;
 
 public class ParameterLog extends Parameter {
     public ParameterLog(String name, Address address, int bytes, boolean signed, double min, double max, double dMin, double dMax) {
@@ -15,13 +15,24 @@ public class ParameterLog extends Parameter {
         this.dMax = dMax;
     }
     @Override
-    public int mapConsoleToDAW(int source) {
+    public Scale getScale() {
+        return Scale.LOG;
+    }
+
+    @Override
+    protected int evaluateConsoleToDAW(int source) {
         double sourceClamped = clampSource(source);
         return (int) Math.floor(16383.0 * Math.log(sourceClamped / dMin) / Math.log(dMax / dMin));
     }
 
     @Override
-    public int mapDAWToConsole(int source) {
-        throw new NotImplementedException();
+    protected int evaluateDAWToConsole(int source) {
+        double y = source / 16383.0;
+        return refineInverse(dMin * Math.pow(dMax / dMin, y), source);
+    }
+
+    @Override
+    protected boolean hasAnalyticInverse() {
+        return true;
     }
 }
@@ -1,14 +1,21 @@
 package kristofkallo.midimapper.parameter;
 
 import kristofkallo.midimapper.Address;
+import kristofkallo.midimapper.Scale;
 import kristofkallo.midimapper.PolygonalFunction;
 import kristofkallo.midimapper.ScalePoints;
-import sun.reflect.generics.reflectiveObjects.NotImplementedException;
 
 public class ParameterPolygonal extends Parameter {
     private final PolygonalFunction polygonalFunction;
 
     public ParameterPolygonal(String name, Address address, int bytes, boolean signed, double min, double max, double dMin, double dMax, ScalePoints scalePoints) {
+        this(name, address, bytes, signed, min, max, dMin, dMax, new PolygonalFunction(scalePoints.x, scalePoints.y));
+    }
+
+    /**
+     * @param polygonalFunction An already built polygonal function, which may be shared with other parameters.
+     */
+    public ParameterPolygonal(String name, Address address, int bytes, boolean signed, double min, double max, double dMin, double dMax, PolygonalFunction polygonalFunction) {
         this.name = name;
         this.address = address;
         this.lengthInBytes = bytes;
@@ -17,7 +24,7 @@ public class ParameterPolygonal extends Parameter {
         this.max = max;
         this.dMin = dMin;
         this.dMax = dMax;
-        polygonalFunction = new PolygonalFunction(scalePoints.x, scalePoints.y);
+        this.polygonalFunction = polygonalFunction;
     }
 
     private double getPolygonalFunctionValue(double x) {
@@ -25,15 +32,15 @@ public class ParameterPolygonal extends Parameter {
     }
 
     @Override
-    public int mapConsoleToDAW(int source) {
-        double sourceClamped = clampSource(source);
-        double res = getPolygonalFunctionValue(sourceClamped);
-        return (int) clamp(res, 0, 16383);
+    public Scale getScale() {
+        return Scale.POLY;
     }
 
     @Override
-    public int mapDAWToConsole(int source) {
-        throw new NotImplementedException();
+    protected int evaluateConsoleToDAW(int source) {
+        double sourceClamped = clampSource(source);
+        double res = getPolygonalFunctionValue(sourceClamped);
+        return (int) clamp(res, 0, 16383);
     }
 
 }
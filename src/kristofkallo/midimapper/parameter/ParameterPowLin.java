@@ -1,7 +1,7 @@
 package kristofkallo.midimapper.parameter;
 
 import kristofkallo.midimapper.Address;
-import sun.reflect.generics.reflectiveObjects.NotImplementedException;
+import kristofkallo.midimapper.Scale;
 
 public class ParameterPowLin extends Parameter {
     private final double exponent;
@@ -21,7 +21,12 @@ public class ParameterPowLin extends Parameter {
         this.coefficient = coefficient;
     }
     @Override
-    public int mapConsoleToDAW(int source) {
+    public Scale getScale() {
+        return Scale.POWLIN;
+    }
+
+    @Override
+    protected int evaluateConsoleToDAW(int source) {
 
 //        double y;
 //        if (source < 2500) {
@@ -46,7 +51,20 @@ public class ParameterPowLin extends Parameter {
     }
 
     @Override
-    public int mapDAWToConsole(int source) {
-        throw new NotImplementedException();
+    protected int evaluateDAWToConsole(int source) {
+        double y = source / 16383.0;
+        double estimate;
+        if (y < coefficient) {
+            double x = Math.pow(y / coefficient, 1 / exponent);
+            estimate = dMin + x * (threshold - dMin);
+        } else {
+            estimate = threshold + (y - coefficient) / (1 - coefficient) * (dMax - threshold);
+        }
+        return refineInverse(estimate, source);
+    }
+
+    @Override
+    protected boolean hasAnalyticInverse() {
+        return true;
     }
 }
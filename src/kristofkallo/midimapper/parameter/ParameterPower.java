@@ -1,7 +1,7 @@
 package kristofkallo.midimapper.parameter;
 
 import kristofkallo.midimapper.Address;
-import sun.reflect.generics.reflectiveObjects.NotImplementedException;
+import kristofkallo.midimapper.Scale;
 
 public class ParameterPower extends Parameter {
     private final double exponent;
@@ -19,16 +19,28 @@ public class ParameterPower extends Parameter {
     }
 
     @Override
-    public int mapConsoleToDAW(int source) {
+    public Scale getScale() {
+        return Scale.POW;
+    }
+
+    @Override
+    protected int evaluateConsoleToDAW(int source) {
         double sourceClamped = clampSource(source);
-        double x = (source - dMin) / (dMax - dMin);
+        double x = (sourceClamped - dMin) / (dMax - dMin);
         double y = Math.pow(x, exponent);
         double res = Math.floor(16383 * y);
         return (int) clamp(res, 0, 16383);
     }
 
     @Override
-    public int mapDAWToConsole(int source) {
-        throw new NotImplementedException();
+    protected int evaluateDAWToConsole(int source) {
+        double y = source / 16383.0;
+        double x = Math.pow(y, 1 / exponent);
+        return refineInverse(dMin + x * (dMax - dMin), source);
+    }
+
+    @Override
+    protected boolean hasAnalyticInverse() {
+        return true;
     }
 }
@@ -1,15 +1,23 @@
 package kristofkallo.midimapper.parameter;
 
 import kristofkallo.midimapper.Address;
+import kristofkallo.midimapper.Scale;
 import kristofkallo.midimapper.ScalePoints;
 import org.apache.commons.math3.analysis.interpolation.SplineInterpolator;
 import org.apache.commons.math3.analysis.polynomials.PolynomialSplineFunction;
-import sun.reflect.generics.reflectiveObjects.NotImplementedException;
 
 public class ParameterSpline extends Parameter {
     private final PolynomialSplineFunction splineFunction;
 
     public ParameterSpline(String name, Address address, int bytes, boolean signed, double min, double max, double dMin, double dMax, ScalePoints scalePoints) {
+        this(name, address, bytes, signed, min, max, dMin, dMax,
+                scalePoints == null ? null : new SplineInterpolator().interpolate(scalePoints.x, scalePoints.y));
+    }
+
+    /**
+     * @param splineFunction An already interpolated spline, or null if the scale is not known.
+     */
+    public ParameterSpline(String name, Address address, int bytes, boolean signed, double min, double max, double dMin, double dMax, PolynomialSplineFunction splineFunction) {
         this.name = name;
         this.address = address;
         this.lengthInBytes = bytes;
@@ -18,8 +26,11 @@ public class ParameterSpline extends Parameter {
         this.max = max;
         this.dMin = dMin;
         this.dMax = dMax;
-        SplineInterpolator interpolator = new SplineInterpolator();
-        this.splineFunction = scalePoints == null ? null : interpolator.interpolate(scalePoints.x, scalePoints.y);
+        this.splineFunction = splineFunction;
+    }
+
+    public PolynomialSplineFunction getSplineFunction() {
+        return splineFunction;
     }
 
     private double getSplineFunctionValue(double x) {
@@ -27,14 +38,19 @@ public class ParameterSpline extends Parameter {
     }
 
     @Override
-    public int mapConsoleToDAW(int source) {
+    public Scale getScale() {
+        return Scale.SPLINE;
+    }
+
+    @Override
+    protected int evaluateConsoleToDAW(int source) {
         double sourceClamped = clampSource(source);
         double res = getSplineFunctionValue(sourceClamped);
         return (int) clamp(res, 0, 16383);
     }
 
     @Override
-    public int mapDAWToConsole(int source) {
-        throw new NotImplementedException();
+    protected boolean isCompilable() {
+        return splineFunction != null;
     }
 }
@@ -1,8 +1,8 @@
 package kristofkallo.midimapper.parameter;
 
 import kristofkallo.midimapper.Address;
+import kristofkallo.midimapper.Scale;
 import kristofkallo.midimapper.ScalePoints;
-import sun.reflect.generics.reflectiveObjects.NotImplementedException;
 
 public class ParameterStairs extends Parameter {
     private final ScalePoints scalePoints;
@@ -19,7 +19,12 @@ public class ParameterStairs extends Parameter {
     }
 
     @Override
-    public int mapConsoleToDAW(int source) {
+    public Scale getScale() {
+        return Scale.STAIRS;
+    }
+
+    @Override
+    protected int evaluateConsoleToDAW(int source) {
         for (int i = 0; i < scalePoints.x.length; i++) {
             if (source <= scalePoints.x[i]) {
                 return (int) clamp(scalePoints.y[i], 0, 16383);
@@ -29,7 +34,23 @@ public class ParameterStairs extends Parameter {
     }
 
     @Override
-    public int mapDAWToConsole(int source) {
-        throw new NotImplementedException();
+    protected int getSourceLow() {
+        return (int) Math.floor(scalePoints.x[0]);
+    }
+
+    @Override
+    protected int getSourceHigh() {
+        // The first value above the last step
+        return (int) Math.floor(scalePoints.x[scalePoints.x.length - 1]) + 1;
+    }
+
+    @Override
+    protected int getConsoleLow() {
+        return (int) Math.ceil(scalePoints.x[0]);
+    }
+
+    @Override
+    protected int getConsoleHigh() {
+        return (int) Math.floor(scalePoints.x[scalePoints.x.length - 1]);
     }
 }
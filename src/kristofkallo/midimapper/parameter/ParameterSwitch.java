@@ -1,6 +1,7 @@
 package kristofkallo.midimapper.parameter;
 
 import kristofkallo.midimapper.Address;
+import kristofkallo.midimapper.Scale;
 
 public class ParameterSwitch extends Parameter {
     public ParameterSwitch(String name, Address address) {
@@ -15,12 +16,28 @@ public class ParameterSwitch extends Parameter {
     }
 
     @Override
-    public int mapConsoleToDAW(int source) {
+    public Scale getScale() {
+        return Scale.SW;
+    }
+
+    @Override
+    protected int evaluateConsoleToDAW(int source) {
         return source == 0 ? 0 : 16383;
     }
 
     @Override
-    public int mapDAWToConsole(int source) {
+    protected boolean isCompilable() {
+        // Any non-zero value is on, so the domain is unbounded, and the mapping is trivial anyway
+        return false;
+    }
+
+    @Override
+    protected int evaluateDAWToConsole(int source) {
         return source == 0 ? 0 : 1;
     }
+
+    @Override
+    protected boolean hasAnalyticInverse() {
+        return true;
+    }
 }
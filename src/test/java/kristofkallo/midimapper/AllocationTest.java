@@ -0,0 +1,141 @@
+package kristofkallo.midimapper;
+
+import kristofkallo.midimapper.parameter.Parameter;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.Receiver;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.SysexMessage;
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Measures the heap allocated per message on the receiving thread in steady
+ * state, from the input to the output port in both directions: Data Set
+ * messages through {@link M400Receiver} and {@link NrpnOutput}, and NRPN
+ * messages through {@link LoopMidiReceiver} and {@link SysexOutput}, into
+ * receivers that discard them.
+ *
+ * The Data Set messages can only be read without a copy if the buffers of
+ * the messages are accessible. On Java 9 and later the build opens the
+ * package to the tests, like the manifest of the jar does for the program.
+ * Less than a byte per message is allowed, so that a one-off allocation,
+ * e.g. by the JIT, does not fail it, but any allocation per message does.
+ */
+public class AllocationTest {
+    private static final int COUNT = 200000;
+
+    private static final Receiver NULL_RECEIVER = new Receiver() {
+        @Override
+        public void send(MidiMessage message, long timeStamp) {
+        }
+
+        @Override
+        public void close() {
+        }
+    };
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private static M400Receiver fromConsole;
+    private static SysexMessage[] dataSets;
+    private static LoopMidiReceiver fromDAW;
+    private static ShortMessage[][] nrpns;
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        assumeTrue("Allocation measurement is not supported", THREADS.isThreadAllocatedMemorySupported());
+        THREADS.setThreadAllocatedMemoryEnabled(true);
+        MidiMap midiMap = new MidiMap(App.MAP_PATHNAME, true);
+        Parameter parameter = findTwoByteParameter(midiMap);
+
+        fromConsole = new M400Receiver(new NrpnOutput(NULL_RECEIVER), midiMap);
+        dataSets = new SysexMessage[2];
+        for (int i = 0; i < dataSets.length; i++) {
+            dataSets[i] = createDataSet(parameter, i * 100);
+        }
+        fromDAW = new LoopMidiReceiver(new SysexOutput(NULL_RECEIVER), midiMap);
+        nrpns = new ShortMessage[2][];
+        for (int i = 0; i < nrpns.length; i++) {
+            nrpns[i] = createNrpn(parameter, i * 1000);
+        }
+
+        // Warm up, so that the code is compiled and the lazy initializations are over
+        for (int i = 0; i < 100000; i++) {
+            sendDataSets(1);
+            sendNrpns(1);
+        }
+    }
+
+    @Test
+    public void dataSetsAllocateNothing() {
+        assertTrue("The buffers of the messages are copied", MidiMessageAccess.isDirect());
+        long start = allocated();
+        sendDataSets(COUNT);
+        double perDataSet = (double) (allocated() - start - measurementOverhead()) / COUNT;
+        assertTrue(perDataSet + " B per Data Set message", perDataSet < 1);
+    }
+
+    @Test
+    public void nrpnValuesAllocateNothing() {
+        long start = allocated();
+        sendNrpns(COUNT);
+        double perNrpn = (double) (allocated() - start - measurementOverhead()) / COUNT;
+        assertTrue(perNrpn + " B per NRPN value of four messages", perNrpn < 1);
+    }
+
+    private static long measurementOverhead() {
+        long start = allocated();
+        return allocated() - start;
+    }
+
+    private static long allocated() {
+        return THREADS.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static void sendDataSets(int count) {
+        for (int i = 0; i < count; i++) {
+            fromConsole.send(dataSets[i & 1], -1);
+        }
+    }
+
+    private static void sendNrpns(int count) {
+        for (int i = 0; i < count; i++) {
+            for (ShortMessage message : nrpns[i & 1]) {
+                fromDAW.send(message, -1);
+            }
+        }
+    }
+
+    private static Parameter findTwoByteParameter(MidiMap midiMap) {
+        for (int i = 0; i < midiMap.getParameterCount(); i++) {
+            Parameter parameter = midiMap.getParameter(i);
+            if (parameter.getLengthInBytes() == 2) {
+                return parameter;
+            }
+        }
+        throw new IllegalStateException("No parameter of 2 bytes in the map");
+    }
+
+    private static SysexMessage createDataSet(Parameter parameter, int value) throws InvalidMidiDataException {
+        byte[] data = parameter.getSysexTemplate().clone();
+        MidiDataTransform.toByteArray(value, data, M400ByteCode.DATA_OFFSET, parameter.getLengthInBytes());
+        M400ByteCode.putChecksum(data, data.length - 2);
+        return new SysexMessage(data, data.length);
+    }
+
+    private static ShortMessage[] createNrpn(Parameter parameter, int value) throws InvalidMidiDataException {
+        return new ShortMessage[]{
+                new ShortMessage(ShortMessage.CONTROL_CHANGE, 0, LoopMidiReceiver.NRPN_STAGE_CHANNEL, parameter.getChannel().getAddress().getNrpn()),
+                new ShortMessage(ShortMessage.CONTROL_CHANGE, 0, LoopMidiReceiver.NRPN_STAGE_PARAM, parameter.getAddress().getNrpn()),
+                new ShortMessage(ShortMessage.CONTROL_CHANGE, 0, LoopMidiReceiver.NRPN_STAGE_VALUE_MSB, value >> 7),
+                new ShortMessage(ShortMessage.CONTROL_CHANGE, 0, LoopMidiReceiver.NRPN_STAGE_VALUE_LSB, value & 127)
+        };
+    }
+}
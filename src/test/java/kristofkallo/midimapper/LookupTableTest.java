@@ -0,0 +1,43 @@
+package kristofkallo.midimapper;
+
+import kristofkallo.midimapper.parameter.Parameter;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that the console to DAW lookup table of every compiled parameter
+ * of map.xml gives exactly the same values as the analytic mapping, over the
+ * whole source range of the table.
+ */
+public class LookupTableTest {
+    @Test
+    public void tablesMatchAnalyticMapping() throws Exception {
+        MidiMap map = new MidiMap(App.MAP_PATHNAME, true);
+        int compiledCount = 0;
+        long mismatchCount = 0;
+        StringBuilder mismatches = new StringBuilder();
+        for (int i = 0; i < map.getParameterCount(); i++) {
+            Parameter parameter = map.getParameter(i);
+            short[] table = parameter.getConsoleToDAWTable();
+            if (table == null) {
+                continue;
+            }
+            compiledCount++;
+            int offset = parameter.getTableOffset();
+            for (int j = 0; j < table.length; j++) {
+                int expected = parameter.mapConsoleToDAWAnalytically(offset + j);
+                if (table[j] != expected) {
+                    if (mismatchCount < 10) {
+                        mismatches.append(String.format("%n%s %s: %d maps to %d in the table, %d analytically",
+                                parameter.getChannel().getId(), parameter.getName(), offset + j, table[j], expected));
+                    }
+                    mismatchCount++;
+                }
+            }
+        }
+        assertTrue("No parameter is compiled", compiledCount > 0);
+        assertEquals(mismatchCount + " mismatches:" + mismatches, 0, mismatchCount);
+    }
+}
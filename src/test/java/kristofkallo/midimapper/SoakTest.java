@@ -0,0 +1,249 @@
+package kristofkallo.midimapper;
+
+import kristofkallo.midimapper.parameter.Parameter;
+import org.junit.Test;
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.Receiver;
+import javax.sound.midi.ShortMessage;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Runs the mapper against the simulated devices without any hardware or
+ * display, and checks that no value is lost or corrupted in either direction.
+ *
+ * In each round the parameters of half of the channels are changed on the
+ * simulated console, and the rest by the DAW, at the same time. The round is
+ * over when all of them have arrived on the other side, then every value is
+ * compared with what the mapping gives. Which half goes which way alternates
+ * between the rounds. At the end the state of the console is requested with
+ * RQ1, which must bring every value to the DAW again.
+ *
+ * It runs a few rounds with {@code mvn test}. Soak it longer with e.g.
+ * {@code mvn test -Dtest=SoakTest -Dsoak.rounds=400}.
+ */
+public class SoakTest {
+    private static final long ROUND_TIMEOUT_NANOS = 10000000000L;
+    private static final int DEFAULT_ROUNDS = 20;
+
+    /**
+     * Plays the DAW: decodes the NRPN messages it gets and records the last
+     * value of every parameter.
+     */
+    private static class DAWListener implements Receiver {
+        private final MidiMap midiMap;
+        private final int[] values;
+        private byte channelNrpn;
+        private byte paramNrpn;
+        private int valueMSB;
+        private volatile long receivedCount;
+        private long unmappedCount;
+
+        DAWListener(MidiMap midiMap) {
+            this.midiMap = midiMap;
+            values = new int[midiMap.getParameterCount()];
+        }
+
+        @Override
+        public synchronized void send(MidiMessage message, long timeStamp) {
+            byte[] msg = message.getMessage();
+            switch (msg[1]) {
+                case LoopMidiReceiver.NRPN_STAGE_CHANNEL:
+                    channelNrpn = msg[2];
+                    break;
+                case LoopMidiReceiver.NRPN_STAGE_PARAM:
+                    paramNrpn = msg[2];
+                    break;
+                case LoopMidiReceiver.NRPN_STAGE_VALUE_MSB:
+                    valueMSB = msg[2];
+                    break;
+                case LoopMidiReceiver.NRPN_STAGE_VALUE_LSB:
+                    Channel channel = midiMap.getChannelByNrpn(channelNrpn);
+                    Parameter parameter = channel == null ? null : channel.getParameterByNrpn(paramNrpn);
+                    if (parameter == null) {
+                        unmappedCount++;
+                    } else {
+                        values[parameter.getIndex()] = valueMSB << 7 | msg[2];
+                    }
+                    receivedCount++;
+                    break;
+            }
+        }
+
+        synchronized int get(Parameter parameter) {
+            return values[parameter.getIndex()];
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    @Test
+    public void noValueLostOrCorrupted() throws Exception {
+        int rounds = Integer.getInteger("soak.rounds", DEFAULT_ROUNDS);
+        MidiMap midiMap = new MidiMap(App.MAP_PATHNAME, true);
+        int parameterCount = midiMap.getParameterCount();
+
+        SimulatedM400 console = new SimulatedM400(midiMap, 256);
+        SimulatedDeviceProvider provider = new SimulatedDeviceProvider(console);
+        PortPair consolePorts = provider.openConsole();
+        PortPair dawPorts = provider.openDAW();
+        DAWListener daw = new DAWListener(midiMap);
+        provider.getDAWInput().setReceiver(daw);
+        Receiver dawOutput = provider.getDAWOutput();
+
+        // The chain of the application, without echo suppression, as nothing echoes here
+        LatencyStats latencyStats = new LatencyStats();
+        ConsoleState consoleState = new ConsoleState();
+        consoleState.setMidiMap(midiMap);
+        NrpnOutput nrpnOutput = new NrpnOutput(dawPorts.getOutput(), false, 1000, latencyStats);
+        CoalescingOutput toDAW = new CoalescingOutput("to DAW", nrpnOutput, 0);
+        BatchingSysexOutput toConsole = new BatchingSysexOutput(consolePorts.getOutput(), latencyStats, 64, 1);
+        M400Receiver fromConsoleReceiver = new M400Receiver(toDAW, midiMap, consoleState, null);
+        ConsoleSync consoleSync = new ConsoleSync(fromConsoleReceiver);
+        consolePorts.getInput().setReceiver(consoleSync);
+        dawPorts.getInput().setReceiver(new LoopMidiReceiver(toConsole, midiMap, consoleState, null));
+
+        try {
+            // Which half of the channels a parameter is in
+            Map<Channel, Integer> channelHalves = new IdentityHashMap<>();
+            for (Channel channel : midiMap.getChannels()) {
+                channelHalves.put(channel, channelHalves.size() % 2);
+            }
+            Random random = new Random(1);
+            int[] expectedConsole = new int[parameterCount];
+            int[] expectedDAW = new int[parameterCount];
+            int[] dawValues = new int[parameterCount];
+            long lost = 0;
+            long corrupted = 0;
+            long dawToConsoleCount = 0;
+            long consoleToDAWCount = 0;
+            long expectedDAWReceived = 0;
+            long expectedConsoleBytes = 0;
+            long start = System.nanoTime();
+            for (int round = 0; round < rounds && lost == 0; round++) {
+                // The even channels go from the DAW in even rounds, from the console in odd ones
+                int fromDAWHalf = round % 2;
+                for (int i = 0; i < parameterCount; i++) {
+                    Parameter parameter = midiMap.getParameter(i);
+                    int dawValue = random.nextInt(16384);
+                    if (channelHalves.get(parameter.getChannel()) == fromDAWHalf) {
+                        dawValues[i] = dawValue;
+                        expectedConsole[i] = parameter.mapDAWToConsole(dawValue);
+                        expectedConsoleBytes += parameter.getLengthInBytes();
+                    } else {
+                        int consoleValue = parameter.mapDAWToConsole(dawValue);
+                        dawValues[i] = -1;
+                        expectedConsole[i] = consoleValue;
+                        expectedDAW[i] = parameter.mapConsoleToDAW(decodeAsSent(parameter, consoleValue));
+                        expectedDAWReceived++;
+                    }
+                }
+                Thread dawThread = new Thread(() -> sendFromDAW(midiMap, dawOutput, dawValues), "Simulated DAW");
+                dawThread.start();
+                for (int i = 0; i < parameterCount; i++) {
+                    if (dawValues[i] < 0) {
+                        console.change(midiMap.getParameter(i), expectedConsole[i]);
+                        consoleToDAWCount++;
+                    } else {
+                        dawToConsoleCount++;
+                    }
+                }
+                dawThread.join();
+
+                long deadline = System.nanoTime() + ROUND_TIMEOUT_NANOS;
+                while ((daw.receivedCount < expectedDAWReceived || console.getDataBytes() < expectedConsoleBytes) &&
+                        System.nanoTime() < deadline) {
+                    Thread.sleep(0, 200000);
+                }
+                lost += Math.max(0, expectedDAWReceived - daw.receivedCount) +
+                        Math.max(0, expectedConsoleBytes - console.getDataBytes());
+                for (int i = 0; i < parameterCount; i++) {
+                    Parameter parameter = midiMap.getParameter(i);
+                    if (console.read(parameter) != expectedConsole[i] ||
+                            (dawValues[i] < 0 && daw.get(parameter) != expectedDAW[i])) {
+                        corrupted++;
+                    }
+                }
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+
+            // Every value must come back once more with the console's reply to the requests
+            long beforeSync = daw.receivedCount;
+            String syncSummary = consoleSync.sync(midiMap, consolePorts.getOutput(), 4, 1000);
+            long deadline = System.nanoTime() + ROUND_TIMEOUT_NANOS;
+            while (daw.receivedCount < beforeSync + parameterCount && System.nanoTime() < deadline) {
+                Thread.sleep(1);
+            }
+            long syncLost = Math.max(0, beforeSync + parameterCount - daw.receivedCount);
+            for (int i = 0; i < parameterCount; i++) {
+                Parameter parameter = midiMap.getParameter(i);
+                if (daw.get(parameter) != parameter.mapConsoleToDAW(decodeAsSent(parameter, console.read(parameter)))) {
+                    corrupted++;
+                }
+            }
+
+            System.out.printf("%d values from the DAW to the console, %d from the console to the DAW in %.1f s: %.0f values/s%n",
+                    dawToConsoleCount, consoleToDAWCount, seconds, (dawToConsoleCount + consoleToDAWCount) / seconds);
+            System.out.println(syncSummary);
+            System.out.println(console.getStatistics());
+            System.out.println(toDAW.getStatistics());
+            System.out.println(toConsole.getStatistics());
+            for (String line : latencyStats.getReport()) {
+                System.out.println(line);
+            }
+            assertEquals("lost", 0, lost);
+            assertEquals("lost in the sync", 0, syncLost);
+            assertEquals("corrupted", 0, corrupted);
+            assertEquals("unmapped at the DAW", 0, daw.unmappedCount);
+            assertEquals("checksum errors", 0, console.getChecksumErrors());
+            assertEquals("unmapped bytes", 0, console.getUnmappedBytes());
+            assertEquals("invalid messages", 0, console.getInvalidMessages());
+        } finally {
+            toDAW.close();
+            toConsole.close();
+            console.close();
+        }
+    }
+
+    /**
+     * @return The value as the mapper decodes it when the console sends it, see
+     *         {@link DataSetDecoder#decodeValue(byte[], int, Parameter)}.
+     */
+    private static int decodeAsSent(Parameter parameter, int value) {
+        byte[] bytes = new byte[parameter.getLengthInBytes()];
+        MidiDataTransform.toByteArray(value, bytes, 0, bytes.length);
+        return DataSetDecoder.decodeValue(bytes, 0, parameter);
+    }
+
+    /**
+     * Sends the values that are not negative as NRPN messages, as the DAW does.
+     */
+    private static void sendFromDAW(MidiMap midiMap, Receiver receiver, int[] values) {
+        ShortMessage message = new ShortMessage();
+        try {
+            for (int i = 0; i < values.length; i++) {
+                if (values[i] < 0) {
+                    continue;
+                }
+                Parameter parameter = midiMap.getParameter(i);
+                message.setMessage(ShortMessage.CONTROL_CHANGE, 0, LoopMidiReceiver.NRPN_STAGE_CHANNEL, parameter.getChannel().getAddress().getNrpn());
+                receiver.send(message, -1);
+                message.setMessage(ShortMessage.CONTROL_CHANGE, 0, LoopMidiReceiver.NRPN_STAGE_PARAM, parameter.getAddress().getNrpn());
+                receiver.send(message, -1);
+                message.setMessage(ShortMessage.CONTROL_CHANGE, 0, LoopMidiReceiver.NRPN_STAGE_VALUE_MSB, values[i] >> 7);
+                receiver.send(message, -1);
+                message.setMessage(ShortMessage.CONTROL_CHANGE, 0, LoopMidiReceiver.NRPN_STAGE_VALUE_LSB, values[i] & 127);
+                receiver.send(message, -1);
+            }
+        } catch (InvalidMidiDataException e) {
+            e.printStackTrace();
+        }
+    }
+}
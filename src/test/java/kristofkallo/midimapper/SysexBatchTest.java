@@ -0,0 +1,129 @@
+package kristofkallo.midimapper;
+
+import kristofkallo.midimapper.parameter.Parameter;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.Receiver;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that {@link BatchingSysexOutput} sends the same values as one
+ * message per parameter, in fewer bytes. The scenarios are the recall of
+ * every parameter, as in a DAW snapshot recall, and the recall of a single
+ * channel.
+ */
+public class SysexBatchTest {
+    private static MidiMap map;
+    private static int[] values;
+
+    /**
+     * Records the messages sent to the console.
+     */
+    private static class RecordingReceiver implements Receiver {
+        final List<byte[]> messages = new ArrayList<>();
+        long byteCount;
+
+        @Override
+        public synchronized void send(MidiMessage message, long timeStamp) {
+            messages.add(Arrays.copyOf(message.getMessage(), message.getLength()));
+            byteCount += message.getLength();
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        map = new MidiMap(App.MAP_PATHNAME, true);
+        Random random = new Random(1);
+        values = new int[map.getParameterCount()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = map.getParameter(i).mapDAWToConsole(random.nextInt(16384));
+        }
+    }
+
+    @Test
+    public void allParameters() throws Exception {
+        List<Parameter> all = new ArrayList<>();
+        for (int i = 0; i < map.getParameterCount(); i++) {
+            all.add(map.getParameter(i));
+        }
+        check(all);
+    }
+
+    @Test
+    public void oneChannel() throws Exception {
+        check(map.getChannels().get(0).getParameters());
+    }
+
+    /**
+     * Sends the parameters both ways, and compares the values decoded from the
+     * two runs, so that only the batching is checked and not the encoding.
+     */
+    private static void check(List<Parameter> parameters) throws Exception {
+        RecordingReceiver single = new RecordingReceiver();
+        SysexOutput sysexOutput = new SysexOutput(single);
+        for (Parameter parameter : parameters) {
+            sysexOutput.send(parameter, values[parameter.getIndex()], -1, System.nanoTime());
+        }
+        int[] expected = new int[map.getParameterCount()];
+        int expectedCount = 0;
+        for (byte[] msg : single.messages) {
+            expectedCount += decode(msg, expected);
+        }
+        assertEquals(parameters.size(), expectedCount);
+
+        RecordingReceiver batched = new RecordingReceiver();
+        BatchingSysexOutput batchingOutput = new BatchingSysexOutput(batched, null, 64, 5);
+        for (Parameter parameter : parameters) {
+            batchingOutput.send(parameter, values[parameter.getIndex()], -1, System.nanoTime());
+        }
+        int[] decoded = new int[map.getParameterCount()];
+        int decodedCount = 0;
+        long deadline = System.nanoTime() + 5000000000L;
+        int checked = 0;
+        try {
+            while (decodedCount < parameters.size() && System.nanoTime() < deadline) {
+                synchronized (batched) {
+                    for (; checked < batched.messages.size(); checked++) {
+                        decodedCount += decode(batched.messages.get(checked), decoded);
+                    }
+                }
+                Thread.sleep(1);
+            }
+        } finally {
+            batchingOutput.close();
+        }
+
+        int mismatches = parameters.size() - decodedCount;
+        for (Parameter parameter : parameters) {
+            if (decoded[parameter.getIndex()] != expected[parameter.getIndex()]) {
+                mismatches++;
+            }
+        }
+        assertEquals(0, mismatches);
+        assertTrue(String.format("%d bytes batched, %d bytes one message per parameter", batched.byteCount, single.byteCount),
+                batched.byteCount < single.byteCount);
+    }
+
+    /**
+     * Decodes a Data Set message into the values array.
+     *
+     * @return The number of parameters in the message.
+     */
+    private static int decode(byte[] msg, int[] decoded) throws Exception {
+        assertTrue("Invalid message " + Arrays.toString(msg),
+                DataSetDecoder.isDataSet(msg, msg.length) && DataSetDecoder.isChecksumValid(msg, msg.length));
+        return DataSetDecoder.walk(msg, msg.length, map, (parameter, value) -> decoded[parameter.getIndex()] = value);
+    }
+}